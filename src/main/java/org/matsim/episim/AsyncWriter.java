@@ -0,0 +1,290 @@
+package org.matsim.episim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Writes lines of several files on a background thread, so that the simulation does not wait for disk or compression.
+ * <p>
+ * Lines are collected in batches per file, which are handed over to the writer thread when they are large enough or on {@link #flush()}.
+ * The number of pending batches is bounded, the caller only blocks if the writer thread falls behind by more than {@link #QUEUE_SIZE} batches.
+ * Errors of the writer thread are rethrown on the next call.
+ * <p>
+ * Writers should be closed in a {@code finally} block. If the JVM exits before, e.g. on {@link System#exit(int)},
+ * one shutdown hook shared by all writers still writes their pending lines and closes the files.
+ */
+final class AsyncWriter implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(AsyncWriter.class);
+
+    /**
+     * Number of characters after which a batch is handed over.
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * Signals the writer thread to close all files.
+     */
+    private static final Batch CLOSE = new Batch(-1, "", false, null);
+
+    /**
+     * Writers that have not been closed yet. They are referenced weakly, so that the shutdown hook does not keep any writer alive.
+     */
+    private static final Set<AsyncWriter> open = Collections.newSetFromMap(new WeakHashMap<>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncWriter::closeOnShutdown, "AsyncWriter-shutdown"));
+    }
+
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final List<BufferedWriter> writers = new CopyOnWriteArrayList<>();
+    private final List<StringBuilder> buffers = new ArrayList<>();
+
+    /**
+     * Number of lines written to each file.
+     */
+    private long[] lines = new long[0];
+    private final Thread thread;
+
+    private volatile IOException error;
+    private boolean closed = false;
+
+    AsyncWriter(String name) {
+        // the thread does not keep the JVM alive, pending lines are written by the shutdown hook instead
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        synchronized (open) {
+            open.add(this);
+        }
+    }
+
+    /**
+     * Registers a file that will be written by this writer and closed by {@link #close()}.
+     *
+     * @return index of the file for {@link #writeLine(int, String)}
+     */
+    synchronized int register(BufferedWriter writer) {
+        writers.add(writer);
+        buffers.add(new StringBuilder());
+        lines = Arrays.copyOf(lines, writers.size());
+        return writers.size() - 1;
+    }
+
+    /**
+     * Appends one line to a file.
+     */
+    synchronized void writeLine(int file, String line) {
+        checkState();
+
+        StringBuilder buffer = buffers.get(file);
+        buffer.append(line).append(System.lineSeparator());
+        lines[file]++;
+
+        if (buffer.length() >= BATCH_SIZE)
+            handOver(file, false);
+    }
+
+    /**
+     * Number of lines written to a file with {@link #writeLine(int, String)}, including those that are still pending.
+     */
+    synchronized long getLines(int file) {
+        return lines[file];
+    }
+
+    /**
+     * Hands over all lines written so far, which are then flushed to disk.
+     */
+    synchronized void flush() {
+        checkState();
+
+        for (int i = 0; i < buffers.size(); i++)
+            handOver(i, true);
+    }
+
+    /**
+     * Hands over all lines written so far and waits until the writer thread has written and flushed them.
+     *
+     * @throws IOException if the writer thread failed to write any of them
+     */
+    synchronized void sync() throws IOException {
+        flush();
+
+        CountDownLatch done = new CountDownLatch(1);
+        put(new Batch(-1, "", false, done));
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Writes all remaining lines and closes the files. Waits until the writer thread has finished.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        synchronized (open) {
+            open.remove(this);
+        }
+
+        for (int i = 0; i < buffers.size(); i++)
+            handOver(i, true);
+
+        put(CLOSE);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing files", e);
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Number of writers that have not been closed yet.
+     */
+    static int getNumberOfOpenWriters() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+
+    /**
+     * Writes pending lines of all writers that have not been closed when the JVM exits.
+     */
+    private static void closeOnShutdown() {
+        List<AsyncWriter> writers;
+        synchronized (open) {
+            writers = new ArrayList<>(open);
+        }
+
+        for (AsyncWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not write pending output on shutdown", e);
+            }
+        }
+    }
+
+    private void handOver(int file, boolean flush) {
+        StringBuilder buffer = buffers.get(file);
+        if (buffer.length() == 0 && !flush)
+            return;
+
+        put(new Batch(file, buffer.toString(), flush, null));
+        buffer.setLength(0);
+    }
+
+    private void put(Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing output", e);
+        }
+    }
+
+    private void checkState() {
+        if (closed)
+            throw new IllegalStateException("Writer is already closed");
+        if (error != null)
+            throw new UncheckedIOException(error);
+    }
+
+    /**
+     * Loop of the writer thread.
+     */
+    private void run() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (batch == CLOSE)
+                break;
+
+            // all batches before have been processed
+            if (batch.done != null) {
+                batch.done.countDown();
+                continue;
+            }
+
+            // after an error remaining batches are only drained, so that the caller never blocks
+            if (error != null)
+                continue;
+
+            try {
+                BufferedWriter writer = writers.get(batch.file);
+                writer.write(batch.content);
+                if (batch.flush)
+                    writer.flush();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        for (BufferedWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final int file;
+        private final String content;
+        private final boolean flush;
+
+        /**
+         * Released by the writer thread when it reaches this batch, which has no content then.
+         */
+        @Nullable
+        private final CountDownLatch done;
+
+        private Batch(int file, String content, boolean flush, @Nullable CountDownLatch done) {
+            this.file = file;
+            this.content = content;
+            this.flush = flush;
+            this.done = done;
+        }
+    }
+}
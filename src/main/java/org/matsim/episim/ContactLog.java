@@ -0,0 +1,201 @@
+package org.matsim.episim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Traceable contacts between persons, stored as pairs of person slots in append-only logs per day.
+ * The logs of the last days are kept in a ring buffer, the log of the oldest day is reset and reused when contacts of a new day are added.
+ * The number of contacts per day is limited, so that the memory needed for each day is bounded.
+ * Contacts of single persons are looked up on demand, for which the contacts of a day are sorted by person once.
+ */
+final class ContactLog {
+
+    private static final Logger log = LogManager.getLogger(ContactLog.class);
+
+    /**
+     * Store of the persons, whose slots are logged.
+     */
+    private final PersonStore persons;
+    private final int capacity;
+    private final Day[] days;
+
+    /**
+     * Most recent day that contacts were added for.
+     */
+    private int latest = -1;
+
+    /**
+     * @param days     number of days for which contacts are kept
+     * @param capacity maximum number of contacts per day, further contacts are not recorded
+     */
+    ContactLog(PersonStore persons, int days, int capacity) {
+        if (days < 1)
+            throw new IllegalArgumentException("Contacts need to be kept for at least one day, but was " + days);
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative, but was " + capacity);
+
+        this.persons = persons;
+        this.capacity = capacity;
+        this.days = new Day[days];
+        for (int i = 0; i < days; i++)
+            this.days[i] = new Day();
+    }
+
+    /**
+     * Adds a contact between two persons at {@code day}. Contacts of days outside of the window are discarded.
+     */
+    void add(int person, int other, int day) {
+        if (day <= latest - days.length)
+            throw new IllegalStateException(String.format("Contact at day %d added after contacts of day %d", day, latest));
+
+        latest = Math.max(latest, day);
+
+        Day d = days[day % days.length];
+        if (d.day != day)
+            d.reset(day);
+
+        if (d.size >= 2L * capacity) {
+            if (!d.full)
+                log.warn("Tracing capacity of {} contacts reached at day {}, further contacts are not traced", capacity, day);
+
+            d.full = true;
+            return;
+        }
+
+        d.add(person, other);
+    }
+
+    /**
+     * Persons the person had contact with from day {@code from} to {@code to} (inclusive), ordered by day and the order contacts were added.
+     * Only days within the window are available.
+     */
+    Set<EpisimPerson> get(int person, int from, int to) {
+        Set<EpisimPerson> result = null;
+        for (int day = Math.max(0, from); day <= to; day++) {
+            Day d = days[day % days.length];
+            if (d.day != day || d.size == 0)
+                continue;
+
+            if (!d.indexed)
+                d.buildIndex();
+
+            int i = d.find(person);
+            for (; i < d.size && (int) (d.index[i] >>> 32) == person; i++) {
+                if (result == null)
+                    result = new LinkedHashSet<>();
+
+                result.add(persons.getPerson(d.edges[(int) d.index[i] ^ 1]));
+            }
+        }
+
+        return result != null ? result : Collections.emptySet();
+    }
+
+    /**
+     * Writes all contacts within the window, which can be restored with {@link #read(DataInput)}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(latest);
+        out.writeInt(days.length);
+        for (Day d : days) {
+            out.writeInt(d.day);
+            out.writeBoolean(d.full);
+            out.writeInt(d.size);
+            for (int i = 0; i < d.size; i++)
+                out.writeInt(d.edges[i]);
+        }
+    }
+
+    /**
+     * Replaces all contacts by the ones written with {@link #write(DataOutput)}, the number of days needs to be the same.
+     */
+    void read(DataInput in) throws IOException {
+        latest = in.readInt();
+        int n = in.readInt();
+        if (n != days.length)
+            throw new IllegalStateException(String.format("Contacts were traced for %d days, but %d are configured", n, days.length));
+
+        for (Day d : days) {
+            d.reset(in.readInt());
+            d.full = in.readBoolean();
+            int size = in.readInt();
+            for (int i = 0; i < size; i += 2)
+                d.add(in.readInt(), in.readInt());
+        }
+    }
+
+    /**
+     * Contacts of one day.
+     */
+    private static final class Day {
+
+        private int day = -1;
+
+        /**
+         * Pairs of person slots, stored one after another.
+         */
+        private int[] edges = new int[0];
+        private int size = 0;
+        private boolean full = false;
+
+        /**
+         * Entries of {@link #edges}, sorted by person and position. Each entry holds the person in the upper and the position in the lower half.
+         * Only valid if {@link #indexed} is set.
+         */
+        private long[] index = new long[0];
+        private boolean indexed = false;
+
+        private void reset(int day) {
+            this.day = day;
+            this.size = 0;
+            this.full = false;
+            this.indexed = false;
+        }
+
+        private void add(int person, int other) {
+            if (size + 2 > edges.length)
+                edges = Arrays.copyOf(edges, Math.max(1024, edges.length * 2));
+
+            edges[size++] = person;
+            edges[size++] = other;
+            indexed = false;
+        }
+
+        private void buildIndex() {
+            if (index.length < size)
+                index = new long[edges.length];
+
+            for (int i = 0; i < size; i++)
+                index[i] = ((long) edges[i] << 32) | i;
+
+            Arrays.sort(index, 0, size);
+            indexed = true;
+        }
+
+        /**
+         * First position in {@link #index} with an entry of {@code person} or after.
+         */
+        private int find(int person) {
+            long key = (long) person << 32;
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (index[mid] < key)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.matsim.episim;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Wall time of the phases of one simulated day and the throughput of its replay, written to {@code timing.tsv},
+ * see {@link EpisimReporting#reportTiming(DayTiming)}.
+ * <p>
+ * A day begins with {@link InfectionEventHandler#reset(int)} and ends when its events have been replayed.
+ * Time spent in infection dynamics is only measured if {@link EpisimConfigGroup#isTimeInfectionDynamics()} is set,
+ * it is summed over all threads if the day is simulated in parallel, as is the time the threads spent replaying.
+ * Allocations are measured for the simulating thread only, the time spent in garbage collection for the whole JVM.
+ */
+final class DayTiming {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    int day;
+
+    /**
+     * Nano seconds of each phase.
+     */
+    long trajectories;
+    long progression;
+    long report;
+    long policy;
+    long replay;
+    long facilityDynamics;
+    long vehicleDynamics;
+
+    /**
+     * Nano seconds the threads spent replaying events, which is the replay itself if the day is simulated sequentially.
+     */
+    long work;
+
+    /**
+     * Whether {@link #facilityDynamics} and {@link #vehicleDynamics} have been measured.
+     */
+    boolean dynamicsTimed;
+
+    /**
+     * Events replayed and contacts evaluated during the day.
+     */
+    long events;
+    long contacts;
+
+    /**
+     * Bytes allocated by the simulating thread and milli seconds of garbage collection during the day.
+     */
+    long allocated;
+    long gcTime;
+
+    private boolean started = false;
+    private long start;
+    private long last;
+    private long contactsAtStart;
+    private long allocatedAtStart;
+    private long gcTimeAtStart;
+
+    /**
+     * Starts a new day and resets all measurements.
+     *
+     * @param contacts number of contacts evaluated so far
+     */
+    void start(int day, long contacts) {
+        this.day = day;
+        trajectories = progression = report = policy = replay = facilityDynamics = vehicleDynamics = work = 0;
+        events = 0;
+        this.contacts = 0;
+
+        contactsAtStart = contacts;
+        allocatedAtStart = getAllocatedBytes();
+        gcTimeAtStart = getGcTime();
+        started = true;
+        start = last = System.nanoTime();
+    }
+
+    /**
+     * Nano seconds since the start of the day or the last call.
+     */
+    long lap() {
+        long now = System.nanoTime();
+        long lap = now - last;
+        last = now;
+        return lap;
+    }
+
+    /**
+     * Whether a day has been started and not finished yet.
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Finishes the day after its events have been replayed.
+     *
+     * @param contacts number of contacts evaluated so far
+     */
+    void finish(long replay, long events, long contacts) {
+        this.replay = replay;
+        if (work == 0)
+            work = replay;
+        this.events = events;
+        this.contacts += contacts - contactsAtStart;
+        this.allocated = getAllocatedBytes() - allocatedAtStart;
+        this.gcTime = getGcTime() - gcTimeAtStart;
+        last = System.nanoTime();
+        started = false;
+    }
+
+    /**
+     * Nano seconds from the start to the end of the day.
+     */
+    long getTotal() {
+        return last - start;
+    }
+
+    private static long getAllocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        return 0;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+
+        return time;
+    }
+}
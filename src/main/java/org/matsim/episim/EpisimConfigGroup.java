@@ -17,18 +17,34 @@ public final class EpisimConfigGroup extends ReflectiveConfigGroup {
 
     private static final String INPUT_EVENTS_FILE = "inputEventsFile";
     private static final String OUTPUT_EVENTS_FOLDER = "outputEventsFolder";
+    private static final String EVENTS_CACHE_FOLDER = "eventsCacheFolder";
+    private static final String STREAM_EVENTS = "streamEvents";
     private static final String CALIBRATION_PARAMETER = "calibrationParameter";
     private static final String PUT_TRACABLE_PERSONS_IN_QUARANTINE = "pubTracablePersonsInQuarantine";
     private static final String SAMPLE_SIZE = "sampleSize";
+    private static final String NUMBER_OF_THREADS = "numberOfThreads";
+    private static final String TRACING_DAYS = "tracingDays";
+    private static final String TRACING_CAPACITY = "tracingCapacity";
+    private static final String SNAPSHOT_INTERVAL = "snapshotInterval";
+    private static final String START_FROM_SNAPSHOT = "startFromSnapshot";
+    private static final String TIME_INFECTION_DYNAMICS = "timeInfectionDynamics";
 
     private static final Logger log = Logger.getLogger(EpisimConfigGroup.class);
     private static final String GROUPNAME = "episim";
 
     private String inputEventsFile = null;
     private String outputEventsFolder = null;
+    private String eventsCacheFolder = null;
+    private boolean streamEvents = false;
     private double calibrationParameter = 0.0000012;
     private double sampleSize = 0.1;
+    private int numberOfThreads = 1;
     private PutTracablePersonsInQuarantine putTracablePersonsInQuarantine = PutTracablePersonsInQuarantine.no;
+    private int tracingDays = 1;
+    private int tracingCapacity = Integer.MAX_VALUE;
+    private int snapshotInterval = 0;
+    private String startFromSnapshot = null;
+    private boolean timeInfectionDynamics = false;
     private FacilitiesHandling facilitiesHandling = FacilitiesHandling.snz;
     private Config policyConfig = ConfigFactory.empty();
     private String overwritePolicyLocation = null;
@@ -61,6 +77,62 @@ public final class EpisimConfigGroup extends ReflectiveConfigGroup {
         this.outputEventsFolder = outputEventsFolder;
     }
 
+    /**
+     * Folder where parsed events are cached. If not set, the cache is placed next to the input events file.
+     */
+    @StringGetter(EVENTS_CACHE_FOLDER)
+    public String getEventsCacheFolder() {
+        return eventsCacheFolder;
+    }
+
+    @StringSetter(EVENTS_CACHE_FOLDER)
+    public void setEventsCacheFolder(String eventsCacheFolder) {
+        this.eventsCacheFolder = eventsCacheFolder;
+    }
+
+    /**
+     * Read the events from the cache each day, instead of holding all of them in memory. Needs events from a local file.
+     * Memory is bounded regardless of the number of events, but days can only be simulated with one thread.
+     * The cache should be created beforehand, see {@link ReplayHandler#createCache(EpisimConfigGroup)}.
+     */
+    @StringGetter(STREAM_EVENTS)
+    public boolean isStreamEvents() {
+        return streamEvents;
+    }
+
+    @StringSetter(STREAM_EVENTS)
+    public void setStreamEvents(boolean streamEvents) {
+        this.streamEvents = streamEvents;
+    }
+
+    /**
+     * Whether the time spent in the infection dynamics of facilities and vehicles is written to {@code timing.tsv}.
+     * Off by default, because the clock is read twice for every person leaving a container.
+     */
+    @StringGetter(TIME_INFECTION_DYNAMICS)
+    public boolean isTimeInfectionDynamics() {
+        return timeInfectionDynamics;
+    }
+
+    @StringSetter(TIME_INFECTION_DYNAMICS)
+    public void setTimeInfectionDynamics(boolean timeInfectionDynamics) {
+        this.timeInfectionDynamics = timeInfectionDynamics;
+    }
+
+    /**
+     * Number of threads used to simulate a day. With more than one thread, the containers are simulated independently of each other and
+     * changes of persons are applied at the end of the day in the order of their events. Results are the same as with a single thread.
+     */
+    @StringGetter(NUMBER_OF_THREADS)
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    @StringSetter(NUMBER_OF_THREADS)
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
     @StringGetter(CALIBRATION_PARAMETER)
     public double getCalibrationParameter() {
         return this.calibrationParameter;
@@ -81,6 +153,60 @@ public final class EpisimConfigGroup extends ReflectiveConfigGroup {
         this.putTracablePersonsInQuarantine = putTracablePersonsInQuarantine;
     }
 
+    /**
+     * Number of days before a person goes into quarantine, whose contacts are traced and put into quarantine as well.
+     */
+    @StringGetter(TRACING_DAYS)
+    public int getTracingDays() {
+        return tracingDays;
+    }
+
+    @StringSetter(TRACING_DAYS)
+    public void setTracingDays(int tracingDays) {
+        this.tracingDays = tracingDays;
+    }
+
+    /**
+     * Maximum number of contacts that are traced per day, further contacts of that day are ignored.
+     * Bounds the memory needed for tracing, which is about 24 bytes per contact and day.
+     */
+    @StringGetter(TRACING_CAPACITY)
+    public int getTracingCapacity() {
+        return tracingCapacity;
+    }
+
+    @StringSetter(TRACING_CAPACITY)
+    public void setTracingCapacity(int tracingCapacity) {
+        this.tracingCapacity = tracingCapacity;
+    }
+
+    /**
+     * Interval in days at which a snapshot of the complete state is written into the output directory, 0 to disable snapshots.
+     */
+    @StringGetter(SNAPSHOT_INTERVAL)
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    @StringSetter(SNAPSHOT_INTERVAL)
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Snapshot to resume the simulation from, the simulation continues with the day after the snapshot.
+     * Needs the same events and config as the run that has written the snapshot.
+     */
+    @StringGetter(START_FROM_SNAPSHOT)
+    public String getStartFromSnapshot() {
+        return startFromSnapshot;
+    }
+
+    @StringSetter(START_FROM_SNAPSHOT)
+    public void setStartFromSnapshot(String startFromSnapshot) {
+        this.startFromSnapshot = startFromSnapshot;
+    }
+
     /**
      * Sample size in relation to whole population, between (0, 1].
      */
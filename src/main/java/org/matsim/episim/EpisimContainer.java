@@ -1,13 +1,17 @@
 package org.matsim.episim;
 
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.gbl.Gbl;
 
-import java.util.*;
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Wrapper class for a specific location that keeps track of currently contained agents and entering times.
+ * <p>
+ * Persons are held in a dense array of their slots in the {@link PersonStore}, each person knows its position within the container,
+ * so that persons can be added and removed in constant time. The order of persons is not stable, removing a person moves the last one into its place.
  *
  * @param <T> the type where the agents are located in, e.g {@link org.matsim.vehicles.Vehicle} or {@link org.matsim.facilities.Facility}.
  */
@@ -15,63 +19,215 @@ public class EpisimContainer<T> {
     private final Id<T> containerId;
 
     /**
-     * Persons currently in this container.
+     * Index of this container in the store of its persons, -1 if not stored yet.
      */
-    private Map<Id<Person>, EpisimPerson> persons = new LinkedHashMap<>();
+    private int storeIndex = -1;
 
     /**
-     * Person list needed to draw random persons within container.
+     * Store of the persons in this container, set when the first person is added.
      */
-    private List<EpisimPerson> personsAsList = new ArrayList<>();
+    private PersonStore store;
 
-    private Map<Id<Person>, Double> containerEnterTimes = new LinkedHashMap<>();
+    /**
+     * Slots of the persons currently in this container, only the first {@link #size} entries are valid.
+     */
+    private int[] persons = new int[4];
+
+    /**
+     * Entering time of the person at the same position in {@link #persons}.
+     */
+    private double[] containerEnterTimes = new double[4];
+
+    /**
+     * Position in the trajectory of the person at the same position in {@link #persons}, i.e. its current activity.
+     */
+    private int[] trajectoryPositions = new int[4];
+
+    private int size = 0;
+
+    /**
+     * Read-only view on the persons, needed to draw random persons within container.
+     */
+    private final List<EpisimPerson> personsView = new PersonsView();
 
     EpisimContainer(Id<T> containerId) {
         this.containerId = containerId;
     }
 
     void addPerson(EpisimPerson person, double now) {
-        if (persons.containsKey(person.getPersonId()))
+        if (person.getCurrentContainer() == this)
             throw new IllegalStateException("Person already contained in this container.");
 
-        persons.put(person.getPersonId(), person);
-        personsAsList.add(person);
-        containerEnterTimes.put(person.getPersonId(), now);
         person.setCurrentContainer(this);
+        person.setContainerPosition(addOccupant(person, now, person.getCurrentPositionInTrajectory()));
+    }
+
+    /**
+     * Removes a person by moving the last person of the container into its place.
+     */
+    void removePerson(EpisimPerson person) {
+        person.removeCurrentContainer(this);
+
+        int moved = removeOccupant(person.getContainerPosition());
+        if (moved >= 0)
+            store.setContainerPosition(moved, person.getContainerPosition());
+
+        person.setContainerPosition(-1);
+    }
+
+    /**
+     * Adds a person without updating its current container, which is needed when containers are simulated in parallel.
+     *
+     * @return position of the person within the container
+     */
+    int addOccupant(EpisimPerson person, double now, int trajectoryPosition) {
+        if (store == null)
+            store = person.getStore();
+        else if (store != person.getStore())
+            throw new IllegalStateException(String.format("Person %s is stored in another store than the persons of %s",
+                    person.getPersonId(), containerId));
+
+        if (size == persons.length) {
+            persons = Arrays.copyOf(persons, size * 2);
+            containerEnterTimes = Arrays.copyOf(containerEnterTimes, size * 2);
+            trajectoryPositions = Arrays.copyOf(trajectoryPositions, size * 2);
+        }
+
+        persons[size] = person.getIndex();
+        containerEnterTimes[size] = now;
+        trajectoryPositions[size] = trajectoryPosition;
+        return size++;
+    }
+
+    /**
+     * Removes the person at {@code pos} without updating its current container.
+     *
+     * @return slot of the person that has been moved to {@code pos}, or -1 if it was the last one
+     */
+    int removeOccupant(int pos) {
+        size--;
+        int moved = -1;
+        if (pos != size) {
+            moved = persons[size];
+            persons[pos] = moved;
+            containerEnterTimes[pos] = containerEnterTimes[size];
+            trajectoryPositions[pos] = trajectoryPositions[size];
+        }
+        return moved;
+    }
+
+    /**
+     * Sets the current container of all occupants, after they have been added by {@link #addOccupant(EpisimPerson, double, int)}.
+     */
+    void attachOccupants() {
+        for (int i = 0; i < size; i++) {
+            EpisimPerson person = store.getPerson(persons[i]);
+            person.setCurrentContainer(this);
+            person.setContainerPosition(i);
+        }
     }
 
     /**
-     * @noinspection UnusedReturnValue
+     * Updates the current activity of a person in this container.
      */
-    EpisimPerson removePerson(Id<Person> personId) {
-        containerEnterTimes.remove(personId);
-        EpisimPerson personWrapper = persons.remove(personId);
-        personWrapper.removeCurrentContainer(this);
-        boolean wasRemoved = personsAsList.remove(personWrapper);
-        Gbl.assertIf(wasRemoved);
-        return personWrapper;
+    void setTrajectoryPosition(EpisimPerson person, int trajectoryPosition) {
+        if (person.getCurrentContainer() != this)
+            throw new IllegalStateException("Person is not in this container.");
+
+        trajectoryPositions[person.getContainerPosition()] = trajectoryPosition;
     }
 
     public Id<T> getContainerId() {
         return containerId;
     }
 
+    /**
+     * Store of the persons in this container, null if no person has been added yet.
+     */
+    @Nullable
+    PersonStore getStore() {
+        return store;
+    }
+
+    int getStoreIndex() {
+        return storeIndex;
+    }
+
+    void setStoreIndex(int storeIndex) {
+        this.storeIndex = storeIndex;
+    }
+
 
     void clearPersons() {
-        this.persons.clear();
-        this.personsAsList.clear();
-        this.containerEnterTimes.clear();
+        for (int i = 0; i < size; i++) {
+            EpisimPerson person = store.getPerson(persons[i]);
+            person.removeCurrentContainer(this);
+            person.setContainerPosition(-1);
+        }
+        size = 0;
     }
 
-    public Double getContainerEnteringTime(Id<Person> personId) {
-        return containerEnterTimes.get(personId);
+    /**
+     * Returns the time the person entered this container.
+     *
+     * @return {@link Double#NEGATIVE_INFINITY} if the person is not in this container
+     */
+    public double getContainerEnteringTime(EpisimPerson person) {
+        if (person.getCurrentContainer() != this)
+            return Double.NEGATIVE_INFINITY;
+
+        return containerEnterTimes[person.getContainerPosition()];
     }
 
-    EpisimPerson getPerson(Id<Person> personId) {
-        return persons.get(personId);
+    /**
+     * Returns the time the person at {@code pos} entered this container.
+     */
+    public double getContainerEnteringTime(int pos) {
+        return containerEnterTimes[pos];
     }
 
+    /**
+     * Position in the trajectory of the person at {@code pos}, which has been stored when the person entered the container.
+     */
+    public int getTrajectoryPosition(int pos) {
+        return trajectoryPositions[pos];
+    }
+
+    /**
+     * Returns the persons currently in this container. The returned list is a view and will reflect changes of the container,
+     * its elements are views on the persons created on each access.
+     * Its {@link List#indexOf(Object)} and {@link List#contains(Object)} methods run in constant time.
+     */
     public List<EpisimPerson> getPersons() {
-        return Collections.unmodifiableList(personsAsList);
+        return personsView;
+    }
+
+    private final class PersonsView extends AbstractList<EpisimPerson> {
+
+        @Override
+        public EpisimPerson get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+            return store.getPerson(persons[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof EpisimPerson) || ((EpisimPerson) o).getCurrentContainer() != EpisimContainer.this)
+                return -1;
+
+            return ((EpisimPerson) o).getContainerPosition();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
     }
 }
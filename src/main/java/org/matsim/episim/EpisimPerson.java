@@ -2,98 +2,104 @@ package org.matsim.episim;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.episim.events.EpisimPersonStatusEvent;
 import org.matsim.utils.objectattributes.attributable.Attributable;
 import org.matsim.utils.objectattributes.attributable.Attributes;
 
-import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 /**
  * Persons current state in the simulation.
+ * All state is held by a {@link PersonStore}, of which this class is only a view. Views are created on demand,
+ * so that persons need to be compared with {@link #equals(Object)}.
  */
 public final class EpisimPerson implements Attributable {
 
-    private final Id<Person> personId;
-    private final EventsManager eventsManager;
-    private final Attributes attributes;
-    private final Set<EpisimPerson> traceableContactPersons = new LinkedHashSet<>();
-    private final List<String> trajectory = new ArrayList<>();
     /**
-     * The {@link EpisimContainer} the person is currently located in.
+     * Holds the state of this person at {@link #index}.
      */
-    private EpisimContainer<?> currentContainer = null;
+    private final PersonStore store;
     /**
-     * Current {@link DiseaseStatus}.
+     * Dense index of the person, which is its slot in the store.
      */
-    private DiseaseStatus status = DiseaseStatus.susceptible;
-    /**
-     * Current {@link QuarantineStatus}.
-     */
-    private QuarantineStatus quarantineStatus = QuarantineStatus.no;
-    /**
-     * Iteration when this person got infected. Negative if person was never infected.
-     */
-    private int infectionDate = -1;
+    private final int index;
+
     /**
-     * Iteration when this person got into quarantine. Negative if person was never quarantined.
+     * Creates a person whose state is stored in {@code store} at its index. The person is added to the counts of the store, if any.
      */
-    private int quarantineDate = -1;
-    private int currentPositionInTrajectory;
+    EpisimPerson(int index, Id<Person> personId, Attributes attrs, PersonStore store) {
+        this(store, index);
+        store.setPerson(index, personId, attrs);
+        if (store.getCounts() != null)
+            store.getCounts().add(this);
+    }
+
     /**
-     * The last visited {@link org.matsim.facilities.ActivityFacility}.
+     * Creates a view on a person that has already been created, see {@link PersonStore#getPerson(int)}.
      */
-    private String lastFacilityId;
-    private String firstFacilityId;
+    EpisimPerson(PersonStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
 
-    EpisimPerson(Id<Person> personId, Attributes attrs, EventsManager eventsManager) {
-        this.personId = personId;
-        this.attributes = attrs;
-        this.eventsManager = eventsManager;
+    PersonStore getStore() {
+        return store;
     }
 
     public Id<Person> getPersonId() {
-        return personId;
+        return store.getPersonId(index);
     }
 
     public DiseaseStatus getDiseaseStatus() {
-        return status;
+        return store.getDiseaseStatus(index);
     }
 
     public void setDiseaseStatus(double now, DiseaseStatus status) {
-        this.status = status;
-        eventsManager.processEvent(new EpisimPersonStatusEvent(now, personId, status));
+        StatusCounts counts = store.getCounts();
+        if (counts != null)
+            counts.transition(this, getDiseaseStatus(), status);
+
+        store.setDiseaseStatus(index, status);
+        store.getEventsManager().processEvent(new EpisimPersonStatusEvent(now, getPersonId(), status));
     }
 
     public QuarantineStatus getQuarantineStatus() {
-        return quarantineStatus;
+        return store.getQuarantineStatus(index);
     }
 
     public void setQuarantineStatus(QuarantineStatus quarantineStatus) {
-        this.quarantineStatus = quarantineStatus;
+        StatusCounts counts = store.getCounts();
+        if (counts != null)
+            counts.transition(this, getQuarantineStatus(), quarantineStatus);
+
+        store.setQuarantineStatus(index, quarantineStatus);
     }
 
     int getInfectionDate() {
-        return this.infectionDate;
+        return store.getInfectionDate(index);
     }
 
     public void setInfectionDate(int date) {
         // yyyy should be part of status change. kai, apr'20
 
 
-        if (this.infectionDate > -1)
+        if (store.getInfectionDate(index) > -1)
             throw new IllegalStateException("Infection date already set");
 
-        this.infectionDate = date;
+        store.setInfectionDate(index, date);
     }
 
     /**
      * Days since infection (if any).
      */
     public int daysSinceInfection(int currentIteration) {
+        int infectionDate = store.getInfectionDate(index);
         if (infectionDate < 0) throw new IllegalStateException("Person was never infected");
 
         return currentIteration - infectionDate;
@@ -110,53 +116,68 @@ public final class EpisimPerson implements Attributable {
 
         // yyyyyy since this API is so unstable, I would prefer to have the class non-public.  kai, apr'20
 
+        int quarantineDate = store.getQuarantineDate(index);
         if (quarantineDate < 0) throw new IllegalStateException("Person was never quarantined");
 
         return currentIteration - quarantineDate;
     }
 
     int getQuarantineDate() {
-        return this.quarantineDate;
+        return store.getQuarantineDate(index);
     }
 
     public void setQuarantineDate(int date) {
-        this.quarantineDate = date;
+        store.setQuarantineDate(index, date);
     }
 
-    String getLastFacilityId() {
-        return this.lastFacilityId;
-    }
+    /**
+     * Remember a contact between this person and {@code other} at {@code day}, which is traceable from both sides.
+     * Contacts older than the tracing window are discarded.
+     */
+    public void addTraceableContactPerson(EpisimPerson other, int day) {
+        if (other.store != store)
+            throw new IllegalStateException(String.format("Persons %s and %s are not stored together", getPersonId(), other.getPersonId()));
 
-    void setLastFacilityId(String lastFacilityId) {
-        this.lastFacilityId = lastFacilityId;
+        store.getContacts().add(index, other.index, day);
     }
 
-    public void addTraceableContactPerson(EpisimPerson personWrapper) {
-        traceableContactPersons.add(personWrapper);
+    /**
+     * Persons this person had contact with at {@code day}.
+     */
+    public Set<EpisimPerson> getTraceableContactPersons(int day) {
+        return getTraceableContactPersons(day, day);
     }
 
-    public Set<EpisimPerson> getTraceableContactPersons() {
-        return traceableContactPersons;
+    /**
+     * Persons this person had contact with from day {@code from} to {@code to} (inclusive).
+     * Contacts are only available for the number of days configured by {@link EpisimConfigGroup#getTracingDays()}.
+     */
+    public Set<EpisimPerson> getTraceableContactPersons(int from, int to) {
+        return Collections.unmodifiableSet(store.getContacts().get(index, from, to));
     }
 
     void addToTrajectory(String trajectoryElement) {
-        trajectory.add(trajectoryElement);
+        store.getTrajectory(index).add(trajectoryElement);
     }
 
     public List<String> getTrajectory() {
-        return trajectory;
+        return store.getTrajectory(index);
+    }
+
+    void setTrajectory(Trajectory trajectory) {
+        store.setTrajectory(index, trajectory);
     }
 
     public int getCurrentPositionInTrajectory() {
-        return this.currentPositionInTrajectory;
+        return store.getTrajectoryPosition(index);
     }
 
     void setCurrentPositionInTrajectory(int currentPositionInTrajectory) {
-        this.currentPositionInTrajectory = currentPositionInTrajectory;
+        store.setTrajectoryPosition(index, currentPositionInTrajectory);
     }
 
     public EpisimContainer<?> getCurrentContainer() {
-        return currentContainer;
+        return store.getContainer(index);
     }
 
     /**
@@ -164,39 +185,67 @@ public final class EpisimPerson implements Attributable {
      * container can be set.
      */
     public void setCurrentContainer(EpisimContainer<?> container) {
-        if (this.currentContainer != null)
+        EpisimContainer<?> currentContainer = store.getContainer(index);
+        if (currentContainer != null)
             throw new IllegalStateException(String.format("Person in more than one container at once. Person=%s in %s and %s",
-                    this.getPersonId(), container.getContainerId(), this.currentContainer.getContainerId()));
+                    this.getPersonId(), container.getContainerId(), currentContainer.getContainerId()));
 
 
-        this.currentContainer = container;
+        store.setContainer(index, container);
     }
 
     @Override
     public Attributes getAttributes() {
-        return attributes;
+        return store.getAttributes(index);
     }
 
     /**
      * Whether person is currently in a container.
      */
     public boolean isInContainer() {
-        return currentContainer != null;
+        return store.getContainer(index) != null;
+    }
+
+    int getContainerPosition() {
+        return store.getContainerPosition(index);
+    }
+
+    void setContainerPosition(int containerPosition) {
+        store.setContainerPosition(index, containerPosition);
+    }
+
+    /**
+     * Removes the person from its current container, if any, without checks.
+     */
+    void detachContainer() {
+        store.setContainer(index, null);
+        store.setContainerPosition(index, -1);
     }
 
     public void removeCurrentContainer(EpisimContainer<?> container) {
-        if (this.currentContainer != container)
+        EpisimContainer<?> currentContainer = store.getContainer(index);
+        if (currentContainer != container)
             throw new IllegalStateException(String.format("Person is currently in %s, but not in removed one %s", currentContainer, container));
 
-        this.currentContainer = null;
+        store.setContainer(index, null);
+    }
+
+    InfectionEventHandler.EpisimFacility getFirstFacility() {
+        return store.getFirstFacility(index);
     }
 
-    String getFirstFacilityId() {
-        return firstFacilityId;
+    void setFirstFacility(InfectionEventHandler.EpisimFacility firstFacility) {
+        store.setFirstFacility(index, firstFacility);
     }
 
-    void setFirstFacilityId(String firstFacilityId) {
-        this.firstFacilityId = firstFacilityId;
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EpisimPerson && ((EpisimPerson) o).store == store && ((EpisimPerson) o).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
     }
 
     public enum DiseaseStatus {susceptible, infectedButNotContagious, contagious, seriouslySick, critical, recovered}
@@ -4,36 +4,52 @@ import com.google.common.base.Joiner;
 import com.typesafe.config.ConfigRenderOptions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.utils.io.IOUtils;
+import org.matsim.episim.jfr.ReportEvent;
 import org.matsim.episim.policy.ShutdownPolicy;
 
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Reporting and persisting of metrics, like number of infected people etc.
+ * Output files are written asynchronously and need to be closed with {@link #close()} at the end of the simulation.
  */
-public final class EpisimReporting {
+public final class EpisimReporting implements Closeable {
 
     private static final Logger log = LogManager.getLogger(EpisimReporting.class);
     private static final Joiner separator = Joiner.on("\t");
     private static final AtomicInteger specificInfectionsCnt = new AtomicInteger(300);
 
-    private final BufferedWriter infectionsWriter;
-    private final BufferedWriter infectionEventsWriter;
-    private final BufferedWriter restrictionWriter;
+    private final AsyncWriter writer = new AsyncWriter("episim-reporting");
+    private final int infectionsWriter;
+    private final int infectionEventsWriter;
+    private final int restrictionWriter;
+    private final int timingWriter;
+
+    /**
+     * Index at the {@link #writer} of each output file by its name.
+     */
+    private final Map<String, Integer> files = new LinkedHashMap<>();
 
     /**
      * Number format for logging output. Not static because not thread-safe.
@@ -42,6 +58,16 @@ public final class EpisimReporting {
     private final double sampleSize;
 
     EpisimReporting(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * Creates the reporting for a simulation that may be continued from a snapshot.
+     *
+     * @param snapshot if set, output files are continued from those in the output directory of the snapshot, which are copied
+     *                 if needed and truncated to the lines written up to the snapshot. Otherwise all files are written from scratch.
+     */
+    EpisimReporting(Config config, @Nullable Snapshot snapshot) {
         String base;
         if (config.controler().getRunId() != null) {
             base = config.controler().getOutputDirectory() + "/" + config.controler().getRunId() + ".";
@@ -51,9 +77,11 @@ public final class EpisimReporting {
 
         EpisimConfigGroup episimConfigGroup = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
 
-        infectionsWriter = prepareWriter(base + "infections.txt", InfectionsWriterFields.class);
-        infectionEventsWriter = prepareWriter(base + "infectionEvents.txt", InfectionEventsWriterFields.class);
-        restrictionWriter = prepareRestrictionWriter(base + "restrictions.txt", episimConfigGroup.createInitialRestrictions());
+        infectionsWriter = register(base, "infections.txt", separator.join(InfectionsWriterFields.values()), snapshot);
+        infectionEventsWriter = register(base, "infectionEvents.txt", separator.join(InfectionEventsWriterFields.values()), snapshot);
+        restrictionWriter = register(base, "restrictions.txt",
+                separator.join("day", "", episimConfigGroup.createInitialRestrictions().keySet().toArray()), snapshot);
+        timingWriter = register(base, "timing.tsv", separator.join(TimingWriterFields.values()), snapshot);
         sampleSize = episimConfigGroup.getSampleSize();
 
         try {
@@ -66,84 +94,120 @@ public final class EpisimReporting {
         }
     }
 
-    private static void write(String[] array, BufferedWriter writer) {
+    /**
+     * Opens an output file and registers it at the {@link #writer}.
+     */
+    private int register(String base, String name, String header, @Nullable Snapshot snapshot) {
+        BufferedWriter w;
+        if (snapshot != null && snapshot.getOutputLines().containsKey(name))
+            w = resumeWriter(base + name, header, snapshot.getOutputDirectory(), snapshot.getOutputLines().get(name));
+        else
+            w = prepareWriter(base + name, header);
+
+        int file = writer.register(w);
+        files.put(name, file);
+        return file;
+    }
+
+    private void write(String[] array, int file) {
+        writer.writeLine(file, separator.join(array));
+    }
+
+    private static BufferedWriter prepareWriter(String filename, String header) {
+        BufferedWriter writer = IOUtils.getBufferedWriter(filename);
         try {
-            writer.write(separator.join(array));
+            writer.write(header);
             writer.newLine();
-            writer.flush();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        return writer;
     }
 
-    private static BufferedWriter prepareWriter(String filename, Class<? extends Enum<?>> enumClass) {
-        BufferedWriter writer = IOUtils.getBufferedWriter(filename);
+    /**
+     * Continues the file with the same name in {@code source}, which is truncated to its header and the first {@code lines} lines after it.
+     * The file is copied first, if the source is not the output directory.
+     *
+     * @throws IllegalStateException if the file has less lines than written up to the snapshot
+     */
+    private static BufferedWriter resumeWriter(String filename, String header, Path source, long lines) {
+        Path path = Paths.get(filename);
+        Path from = source.resolve(path.getFileName());
         try {
-            writer.write(separator.join(enumClass.getEnumConstants()));
-            writer.newLine();
+            if (Files.exists(from) && !from.toAbsolutePath().normalize().equals(path.toAbsolutePath().normalize()))
+                Files.copy(from, path, StandardCopyOption.REPLACE_EXISTING);
+
+            if (!Files.exists(path) && lines == 0)
+                return prepareWriter(filename, header);
+
+            // the snapshot only counts lines that have been written, so a shorter file is not the output the snapshot belongs to
+            long offset = findLine(path, lines + 1);
+            if (offset < 0)
+                throw new IllegalStateException(String.format("Output %s has less than the %d lines written up to the snapshot", path, lines));
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+
+            return Files.newBufferedWriter(path, StandardOpenOption.APPEND);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        return writer;
     }
 
-    private BufferedWriter prepareRestrictionWriter(String filename, Map<String, ShutdownPolicy.Restriction> r) {
-        BufferedWriter writer = IOUtils.getBufferedWriter(filename);
+    /**
+     * Byte offset after the first {@code n} lines of a file, or -1 if the file does not exist or has less lines.
+     */
+    private static long findLine(Path path, long n) throws IOException {
+        if (!Files.exists(path))
+            return -1;
+
+        long offset = 0;
+        long count = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            for (int b = in.read(); b != -1 && count < n; b = in.read()) {
+                offset++;
+                if (b == '\n')
+                    count++;
+            }
+        }
+
+        return count == n ? offset : -1;
+    }
+
+    /**
+     * Number of lines written to each output file so far, without the header. Needed to resume the output from a snapshot.
+     * Waits until all of them are on disk.
+     */
+    Map<String, Long> getOutputLines() {
         try {
-            writer.write(separator.join("day", "", r.keySet().toArray()));
-            writer.newLine();
+            writer.sync();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        return writer;
+
+        Map<String, Long> lines = new LinkedHashMap<>();
+        files.forEach((name, file) -> lines.put(name, writer.getLines(file)));
+        return lines;
     }
 
     /**
-     * Creates an infection report for the day.
+     * Creates an infection report for the day from the current counts, without iterating over the persons.
      */
-    InfectionReport createReport(Map<Id<Person>, EpisimPerson> personMap, int iteration) {
+    InfectionReport createReport(StatusCounts counts, int iteration) {
 
         InfectionReport report = new InfectionReport();
         report.time = EpisimUtils.getCorrectedTime(0., iteration);
         report.day = iteration;
 
-        for (EpisimPerson person : personMap.values()) {
-            switch (person.getDiseaseStatus()) {
-                case susceptible:
-                    report.nSusceptible++;
-                    break;
-                case infectedButNotContagious:
-                    report.nInfectedButNotContagious++;
-                    report.nTotalInfected++;
-                    break;
-                case contagious:
-                    report.nContagious++;
-                    report.nTotalInfected++;
-                    break;
-                case seriouslySick:
-                    report.nSeriouslySick++;
-                    report.nTotalInfected++;
-                    break;
-                case critical:
-                    report.nCritical++;
-                    report.nTotalInfected++;
-                    break;
-                case recovered:
-                    report.nRecovered++;
-                    break;
-                default:
-                    throw new IllegalStateException("Unexpected value: " + person.getDiseaseStatus());
-            }
-            switch (person.getQuarantineStatus()) {
-                case full:
-                    report.nInQuarantine++;
-                    break;
-                case no:
-                    break;
-                default:
-                    throw new IllegalStateException("Unexpected value: " + person.getQuarantineStatus());
-            }
-        }
+        report.nSusceptible = counts.get(EpisimPerson.DiseaseStatus.susceptible);
+        report.nInfectedButNotContagious = counts.get(EpisimPerson.DiseaseStatus.infectedButNotContagious);
+        report.nContagious = counts.get(EpisimPerson.DiseaseStatus.contagious);
+        report.nSeriouslySick = counts.get(EpisimPerson.DiseaseStatus.seriouslySick);
+        report.nCritical = counts.get(EpisimPerson.DiseaseStatus.critical);
+        report.nRecovered = counts.get(EpisimPerson.DiseaseStatus.recovered);
+        report.nTotalInfected = report.nInfectedButNotContagious + report.nContagious + report.nSeriouslySick + report.nCritical;
+        report.nInQuarantine = counts.get(EpisimPerson.QuarantineStatus.full);
 
         report.scale(1 / sampleSize);
 
@@ -158,6 +222,9 @@ public final class EpisimReporting {
             return;
         }
 
+        ReportEvent event = new ReportEvent();
+        event.begin();
+
         log.warn("===============================");
         log.warn("Beginning day {}", iteration);
         log.warn("No of susceptible persons={} / {}%", decimalFormat.format(r.nSusceptible), 100 * r.nSusceptible / r.nTotal());
@@ -186,6 +253,13 @@ public final class EpisimReporting {
         array[InfectionsWriterFields.nCritical.ordinal()] = Long.toString(r.nCritical);
 
         write(array, infectionsWriter);
+        writer.flush();
+
+        if (event.shouldCommit()) {
+            event.day = iteration;
+            event.infected = r.nTotalInfected;
+            event.commit();
+        }
     }
 
     public void reportInfection(EpisimPerson personWrapper, EpisimPerson infector, double now, String infectionType) {
@@ -203,10 +277,44 @@ public final class EpisimReporting {
     }
 
     void reportRestrictions(Map<String, ShutdownPolicy.Restriction> restrictions, long iteration) {
+        writer.writeLine(restrictionWriter, separator.join(iteration, "", restrictions.values().toArray()));
+        writer.flush();
+    }
+
+    /**
+     * Writes the timing of a day, with times in milli seconds. Infection dynamics are left empty if they have not been measured.
+     * Events per second are the throughput of the whole replay, contacts per second the throughput of a single thread.
+     */
+    void reportTiming(DayTiming t) {
+        double replaySeconds = t.replay / 1e9;
+        double workSeconds = t.work / 1e9;
+
+        String[] array = new String[TimingWriterFields.values().length];
+        array[TimingWriterFields.day.ordinal()] = Integer.toString(t.day);
+        array[TimingWriterFields.total.ordinal()] = Long.toString(t.getTotal() / 1_000_000);
+        array[TimingWriterFields.replay.ordinal()] = Long.toString(t.replay / 1_000_000);
+        array[TimingWriterFields.facilityDynamics.ordinal()] = t.dynamicsTimed ? Long.toString(t.facilityDynamics / 1_000_000) : "";
+        array[TimingWriterFields.vehicleDynamics.ordinal()] = t.dynamicsTimed ? Long.toString(t.vehicleDynamics / 1_000_000) : "";
+        array[TimingWriterFields.trajectories.ordinal()] = Long.toString(t.trajectories / 1_000_000);
+        array[TimingWriterFields.progression.ordinal()] = Long.toString(t.progression / 1_000_000);
+        array[TimingWriterFields.report.ordinal()] = Long.toString(t.report / 1_000_000);
+        array[TimingWriterFields.policy.ordinal()] = Long.toString(t.policy / 1_000_000);
+        array[TimingWriterFields.eventsPerSecond.ordinal()] = Long.toString(replaySeconds > 0 ? (long) (t.events / replaySeconds) : 0);
+        array[TimingWriterFields.contactsPerSecond.ordinal()] = Long.toString(workSeconds > 0 ? (long) (t.contacts / workSeconds) : 0);
+        array[TimingWriterFields.allocatedMB.ordinal()] = Long.toString(t.allocated / (1024 * 1024));
+        array[TimingWriterFields.gcTime.ordinal()] = Long.toString(t.gcTime);
+
+        write(array, timingWriter);
+        writer.flush();
+    }
+
+    /**
+     * Writes all pending output and closes the files.
+     */
+    @Override
+    public void close() {
         try {
-            restrictionWriter.write(separator.join(iteration, "", restrictions.values().toArray()));
-            restrictionWriter.newLine();
-            restrictionWriter.flush();
+            writer.close();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -219,6 +327,11 @@ public final class EpisimReporting {
 
     enum InfectionEventsWriterFields {time, infector, infected, infectionType}
 
+    enum TimingWriterFields {
+        day, total, replay, facilityDynamics, vehicleDynamics, trajectories, progression, report, policy, eventsPerSecond, contactsPerSecond,
+        allocatedMB, gcTime
+    }
+
     /**
      * Detailed infection report for the end of a day.
      * Although the fields are mutable, do not change them outside this class.
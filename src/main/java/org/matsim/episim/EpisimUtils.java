@@ -11,4 +11,24 @@ public class EpisimUtils {
         return Math.min(time, 3600. * 24) + iteration * 24. * 3600;
     }
 
+    /**
+     * Derives the seed of an independent random stream, so that random numbers do not depend on the order in which streams are used.
+     *
+     * @param seed   global seed of the simulation
+     * @param day    current iteration
+     * @param stream purpose of the random numbers, e.g. contacts or disease progression
+     * @param id     index of the event or person the stream belongs to
+     */
+    public static long seed(long seed, int day, int stream, long id) {
+        long h = seed;
+        h = h * 0x9E3779B97F4A7C15L + day;
+        h = h * 0x9E3779B97F4A7C15L + stream;
+        h = h * 0x9E3779B97F4A7C15L + id;
+
+        // finalizer of splitmix64
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
 }
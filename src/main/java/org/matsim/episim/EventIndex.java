@@ -0,0 +1,172 @@
+package org.matsim.episim;
+
+import org.apache.commons.lang3.NotImplementedException;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.gbl.Gbl;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.facilities.Facility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Information derived once from the events of an {@link EventStore}: which events are handled and the pseudo facility of each activity event.
+ * Pseudo facilities are identified by their index in order of first occurrence, each simulation holds its own containers for them.
+ * <p>
+ * If all events are held in memory, every event is resolved on creation and the index is not modified afterwards,
+ * so that it can be shared by simulations running on several threads. Otherwise {@link #resolveEvents()} needs to be called
+ * whenever other events have been loaded, see {@link EventStream}, and the index can only be used by one simulation at a time.
+ * Facilities that are only known from a snapshot are added with {@link #resolve(Id)}, which may be called by several simulations at once.
+ */
+final class EventIndex {
+
+    private final EventStore store;
+    private final EpisimConfigGroup.FacilitiesHandling handling;
+
+    /**
+     * Whether activities and vehicle events of a person should be handled, indexed by person.
+     */
+    private final boolean[] handleActivities;
+    private final boolean[] handleVehicleEvents;
+
+    /**
+     * Whether an activity type is a stage activity, indexed by activity type.
+     */
+    private final boolean[] stageActivity;
+
+    /**
+     * Index of the pseudo facility for each activity event held in memory, -1 if the event should not be handled.
+     * Event {@code i} is found at {@code i - store.getOffset()}.
+     */
+    private int[] eventFacility = new int[0];
+
+    private final List<Id<Facility>> facilityIds = new ArrayList<>();
+    private final Map<Id<Facility>, Integer> index = new HashMap<>();
+
+    /**
+     * Facility by (activity type, link) for bln and by facility for snz.
+     */
+    private final Map<Long, Integer> resolved = new HashMap<>();
+
+    /**
+     * Prefix of each activity type up to the first underscore.
+     */
+    private final String[] actTypePrefix;
+
+    EventIndex(EventStore store, EpisimConfigGroup.FacilitiesHandling handling) {
+        this.store = store;
+        this.handling = handling;
+
+        // filters depend only on person and activity type and are evaluated once per id
+        this.handleActivities = new boolean[store.getNumberOfPersons()];
+        this.handleVehicleEvents = new boolean[store.getNumberOfPersons()];
+        for (int p = 0; p < handleActivities.length; p++) {
+            handleActivities[p] = InfectionEventHandler.shouldHandleActivities(store.getPersonId(p));
+            handleVehicleEvents[p] = InfectionEventHandler.shouldHandlePersonEvent(store.getPersonId(p));
+        }
+
+        this.stageActivity = new boolean[store.getNumberOfActivityTypes()];
+        for (int a = 0; a < stageActivity.length; a++) {
+            stageActivity[a] = TripStructureUtils.isStageActivityType(store.getActivityTypeName(a));
+        }
+
+        this.actTypePrefix = new String[store.getNumberOfActivityTypes()];
+
+        if (store.isLoaded())
+            resolveEvents();
+    }
+
+    EventStore getStore() {
+        return store;
+    }
+
+    EpisimConfigGroup.FacilitiesHandling getFacilitiesHandling() {
+        return handling;
+    }
+
+    /**
+     * Resolves the pseudo facilities of all events that are currently held in memory by the {@link EventStore}.
+     */
+    void resolveEvents() {
+        int offset = store.getOffset();
+        int n = store.getEnd() - offset;
+        if (eventFacility.length < n)
+            eventFacility = new int[n];
+
+        for (int i = offset; i < offset + n; i++) {
+            byte kind = store.getKind(i);
+            if ((kind == EventStore.ACTIVITY_START || kind == EventStore.ACTIVITY_END)
+                    && handleActivities[store.getPerson(i)] && !stageActivity[store.getActivityType(i)]) {
+                eventFacility[i - offset] = resolve(i);
+            } else
+                eventFacility[i - offset] = -1;
+        }
+    }
+
+    /**
+     * Pseudo facility of the activity event {@code i}, or -1 if the event should not be handled.
+     */
+    int getFacility(int i) {
+        return eventFacility[i - store.getOffset()];
+    }
+
+    boolean handleVehicleEvents(int person) {
+        return handleVehicleEvents[person];
+    }
+
+    synchronized int getNumberOfFacilities() {
+        return facilityIds.size();
+    }
+
+    synchronized Id<Facility> getFacilityId(int facility) {
+        return facilityIds.get(facility);
+    }
+
+    /**
+     * Index of the facility with {@code id}, which is added if it has not been seen yet.
+     * Synchronized, because simulations sharing the index resolve the facilities of their snapshots concurrently.
+     */
+    synchronized int resolve(Id<Facility> id) {
+        return index.computeIfAbsent(id, k -> {
+            facilityIds.add(k);
+            return facilityIds.size() - 1;
+        });
+    }
+
+    /**
+     * Ids are only built once per distinct facility, i.e. per facility in snz mode and per activity type and link in bln mode.
+     */
+    private int resolve(int i) {
+        long key;
+        if (handling == EpisimConfigGroup.FacilitiesHandling.snz) {
+            key = store.getLocation(i);
+        } else if (handling == EpisimConfigGroup.FacilitiesHandling.bln) {
+            key = ((long) store.getActivityType(i) << 32) | (store.getLink(i) & 0xffffffffL);
+        } else {
+            throw new NotImplementedException(Gbl.NOT_IMPLEMENTED);
+        }
+
+        Integer facility = resolved.get(key);
+        if (facility == null) {
+            facility = resolve(createEpisimFacilityId(i));
+            resolved.put(key, facility);
+        }
+
+        return facility;
+    }
+
+    private Id<Facility> createEpisimFacilityId(int i) {
+        if (handling == EpisimConfigGroup.FacilitiesHandling.snz) {
+            return Id.create(store.getFacilityId(store.getLocation(i)), Facility.class);
+        }
+
+        // bln: different activity types with the same prefix share the facility
+        int actType = store.getActivityType(i);
+        if (actTypePrefix[actType] == null)
+            actTypePrefix[actType] = store.getActivityTypeName(actType).split("_")[0];
+
+        return Id.create(actTypePrefix[actType] + "_" + store.getLinkId(store.getLink(i)).toString(), Facility.class);
+    }
+}
@@ -0,0 +1,548 @@
+package org.matsim.episim;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Compact, columnar storage of the events of one day.
+ * Ids, activity types and coordinates are interned to dense int indices and times are stored as seconds of the day,
+ * so neither event objects need to be held in memory nor created again while replaying.
+ * Coordinates of activity start events are kept, so that events written again are the same as the ones read.
+ * <p>
+ * Stores opened with {@link #readHeader(Path)} only hold the ids, their events are loaded chunk by chunk by an {@link EventStream}.
+ * In this case only the events from {@link #getOffset()} to {@link #getEnd()} can be accessed.
+ */
+public final class EventStore {
+
+    public static final byte ACTIVITY_START = 0;
+    public static final byte ACTIVITY_END = 1;
+    public static final byte ENTERS_VEHICLE = 2;
+    public static final byte LEAVES_VEHICLE = 3;
+
+    /**
+     * Identifier at the start of every binary file.
+     */
+    private static final int MAGIC = 0x45505356;
+
+    /**
+     * Version of the binary format, needs to be increased whenever the layout or semantic of the stored data changes.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Size of the columns of one event in the binary format, one byte and six ints.
+     */
+    private static final int BYTES_PER_EVENT = 1 + 6 * Integer.BYTES;
+
+    /**
+     * Size of the buffer the columns are read through.
+     */
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final Index<Id<Person>> persons = new Index<>();
+    private final Index<Id<ActivityFacility>> facilities = new Index<>();
+    private final Index<Id<Vehicle>> vehicles = new Index<>();
+    private final Index<Id<Link>> links = new Index<>();
+    private final Index<String> activityTypes = new Index<>();
+    private final Index<Coord> coords = new Index<>();
+
+    private int size = 0;
+
+    /**
+     * Index of the first event held in the columns, which hold {@code end - offset} events.
+     */
+    private int offset = 0;
+    private int end = 0;
+
+    /**
+     * Position of the first column in the file the store was read from.
+     */
+    private long dataPosition = -1;
+
+    private byte[] kind = new byte[1024];
+    private int[] time = new int[1024];
+    private int[] person = new int[1024];
+    /**
+     * Facility index for activity events, vehicle index for vehicle events.
+     */
+    private int[] location = new int[1024];
+    /**
+     * Only defined for activity events, -1 otherwise.
+     */
+    private int[] link = new int[1024];
+    private int[] actType = new int[1024];
+    /**
+     * Only defined for activity start events with coordinate, -1 otherwise.
+     */
+    private int[] coord = new int[1024];
+
+    /**
+     * Number of events with time not fitting into full seconds.
+     */
+    private int roundedTimes = 0;
+
+    /**
+     * Appends an event to the store.
+     *
+     * @return false if event type is not supported and has not been added
+     */
+    boolean add(Event event) {
+        if (event instanceof ActivityStartEvent) {
+            ActivityStartEvent e = (ActivityStartEvent) event;
+            add(ACTIVITY_START, e.getTime(), e.getPersonId(), facilities.intern(e.getFacilityId()), links.intern(e.getLinkId()),
+                    activityTypes.intern(e.getActType()), e.getCoord() != null ? coords.intern(e.getCoord()) : -1);
+        } else if (event instanceof ActivityEndEvent) {
+            ActivityEndEvent e = (ActivityEndEvent) event;
+            add(ACTIVITY_END, e.getTime(), e.getPersonId(), facilities.intern(e.getFacilityId()), links.intern(e.getLinkId()),
+                    activityTypes.intern(e.getActType()), -1);
+        } else if (event instanceof PersonEntersVehicleEvent) {
+            PersonEntersVehicleEvent e = (PersonEntersVehicleEvent) event;
+            add(ENTERS_VEHICLE, e.getTime(), e.getPersonId(), vehicles.intern(e.getVehicleId()), -1, -1, -1);
+        } else if (event instanceof PersonLeavesVehicleEvent) {
+            PersonLeavesVehicleEvent e = (PersonLeavesVehicleEvent) event;
+            add(LEAVES_VEHICLE, e.getTime(), e.getPersonId(), vehicles.intern(e.getVehicleId()), -1, -1, -1);
+        } else
+            return false;
+
+        return true;
+    }
+
+    private void add(byte k, double t, Id<Person> p, int loc, int l, int act, int c) {
+        if (size == kind.length) {
+            int capacity = kind.length * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            time = Arrays.copyOf(time, capacity);
+            person = Arrays.copyOf(person, capacity);
+            location = Arrays.copyOf(location, capacity);
+            link = Arrays.copyOf(link, capacity);
+            actType = Arrays.copyOf(actType, capacity);
+            coord = Arrays.copyOf(coord, capacity);
+        }
+
+        int seconds = (int) t;
+        if (seconds != t)
+            roundedTimes++;
+
+        kind[size] = k;
+        time[size] = seconds;
+        person[size] = persons.intern(p);
+        location[size] = loc;
+        link[size] = l;
+        actType[size] = act;
+        coord[size] = c;
+        size++;
+        end++;
+    }
+
+    /**
+     * Releases unused capacity and the maps needed for interning, should be called after all events have been added.
+     */
+    void trim() {
+        for (Index<?> index : List.of(persons, facilities, vehicles, links, activityTypes, coords))
+            index.freeze();
+
+        kind = Arrays.copyOf(kind, size);
+        time = Arrays.copyOf(time, size);
+        person = Arrays.copyOf(person, size);
+        location = Arrays.copyOf(location, size);
+        link = Arrays.copyOf(link, size);
+        actType = Arrays.copyOf(actType, size);
+        coord = Arrays.copyOf(coord, size);
+    }
+
+    /**
+     * Number of stored events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Index of the first event held in memory.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Index after the last event held in memory.
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * Whether all events are held in memory.
+     */
+    boolean isLoaded() {
+        return offset == 0 && end == size;
+    }
+
+    long getDataPosition() {
+        return dataPosition;
+    }
+
+    int getRoundedTimes() {
+        return roundedTimes;
+    }
+
+    public byte getKind(int i) {
+        return kind[i - offset];
+    }
+
+    /**
+     * Time of event in seconds, relative to the start of the day.
+     */
+    public int getTime(int i) {
+        return time[i - offset];
+    }
+
+    public int getPerson(int i) {
+        return person[i - offset];
+    }
+
+    /**
+     * Facility index for activity events and vehicle index for vehicle events.
+     */
+    public int getLocation(int i) {
+        return location[i - offset];
+    }
+
+    public int getLink(int i) {
+        return link[i - offset];
+    }
+
+    public int getActivityType(int i) {
+        return actType[i - offset];
+    }
+
+    /**
+     * Coordinate index of an activity start event, -1 if the event has no coordinate.
+     */
+    public int getCoord(int i) {
+        return coord[i - offset];
+    }
+
+    public Id<Person> getPersonId(int index) {
+        return persons.get(index);
+    }
+
+    public Id<ActivityFacility> getFacilityId(int index) {
+        return facilities.get(index);
+    }
+
+    public Id<Vehicle> getVehicleId(int index) {
+        return vehicles.get(index);
+    }
+
+    public Id<Link> getLinkId(int index) {
+        return links.get(index);
+    }
+
+    public String getActivityTypeName(int index) {
+        return activityTypes.get(index);
+    }
+
+    public Coord getCoordinate(int index) {
+        return coords.get(index);
+    }
+
+    public int getNumberOfPersons() {
+        return persons.size();
+    }
+
+    public int getNumberOfFacilities() {
+        return facilities.size();
+    }
+
+    public int getNumberOfVehicles() {
+        return vehicles.size();
+    }
+
+    public int getNumberOfActivityTypes() {
+        return activityTypes.size();
+    }
+
+    /**
+     * Writes the store in binary format, which can be loaded again with {@link #read(Path)}.
+     */
+    void write(Path path) throws IOException {
+        if (!isLoaded())
+            throw new IllegalStateException("Only stores with all events in memory can be written");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(roundedTimes);
+
+            persons.write(out);
+            facilities.write(out);
+            vehicles.write(out);
+            links.write(out);
+            activityTypes.write(out);
+            coords.write(out, EventStore::formatCoord);
+
+            out.write(kind, 0, size);
+            for (int[] column : new int[][]{time, person, location, link, actType, coord}) {
+                for (int i = 0; i < size; i++)
+                    out.writeInt(column[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the events held in memory by the events from {@code offset} to {@code end}. The columns are used directly, not copied.
+     */
+    void setColumns(int offset, int end, byte[] kind, int[] time, int[] person, int[] location, int[] link, int[] actType, int[] coord) {
+        this.offset = offset;
+        this.end = end;
+        this.kind = kind;
+        this.time = time;
+        this.person = person;
+        this.location = location;
+        this.link = link;
+        this.actType = actType;
+        this.coord = coord;
+    }
+
+    /**
+     * Loads a store written by {@link #write(Path)}. Only the header is mapped into memory, the columns are read into heap arrays
+     * through a small buffer. The columns are not accessed through mappings, because the replay and {@link EventStream} share the same
+     * array based accessors, a single mapping can not hold columns of more than 2 GB and a mapped file could not be replaced
+     * by concurrent runs on all platforms. Reading them block by block keeps the peak memory at the size of the arrays.
+     *
+     * @throws IOException if the file can not be read, is incomplete or was written with an incompatible version
+     */
+    static EventStore read(Path path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            EventStore store = readHeader(channel, path);
+            long pos = store.dataPosition;
+            int n = store.size;
+            ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+            store.end = n;
+            store.kind = new byte[n];
+            for (int i = 0; i < n; ) {
+                int length = Math.min(n - i, READ_BUFFER_SIZE);
+                readFully(channel, buf.clear().limit(length), pos + i);
+                buf.flip().get(store.kind, i, length);
+                i += length;
+            }
+            pos += n;
+
+            store.time = readColumn(channel, buf, pos, n);
+            pos += 4L * n;
+            store.person = readColumn(channel, buf, pos, n);
+            pos += 4L * n;
+            store.location = readColumn(channel, buf, pos, n);
+            pos += 4L * n;
+            store.link = readColumn(channel, buf, pos, n);
+            pos += 4L * n;
+            store.actType = readColumn(channel, buf, pos, n);
+            pos += 4L * n;
+            store.coord = readColumn(channel, buf, pos, n);
+            return store;
+        }
+    }
+
+    /**
+     * Loads only the header and ids of a store written by {@link #write(Path)}, events are not held in memory.
+     *
+     * @throws IOException if the file can not be read or was written with an incompatible version
+     */
+    static EventStore readHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readHeader(channel, path);
+        }
+    }
+
+    private static EventStore readHeader(FileChannel channel, Path path) throws IOException {
+        EventStore store = new EventStore();
+
+        // the header and ids are small compared to the events and mapped as whole
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+
+        try {
+            if (buf.getInt() != MAGIC)
+                throw new IOException("Not an event store: " + path);
+
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException(String.format("Incompatible event store version %d, expected %d", version, VERSION));
+
+            store.size = buf.getInt();
+            store.roundedTimes = buf.getInt();
+
+            store.persons.read(buf, s -> Id.create(s, Person.class));
+            store.facilities.read(buf, s -> Id.create(s, ActivityFacility.class));
+            store.vehicles.read(buf, s -> Id.create(s, Vehicle.class));
+            store.links.read(buf, s -> Id.create(s, Link.class));
+            store.activityTypes.read(buf, String::intern);
+            store.coords.read(buf, EventStore::parseCoord);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Incomplete event store: " + path, e);
+        }
+
+        store.dataPosition = buf.position();
+
+        long expected = store.dataPosition + (long) BYTES_PER_EVENT * store.size;
+        if (store.size < 0 || expected != channel.size())
+            throw new IOException(String.format("Event store %s has %d bytes, but %d are expected for %d events",
+                    path, channel.size(), expected, store.size));
+
+        store.setColumns(0, 0, new byte[0], new int[0], new int[0], new int[0], new int[0], new int[0], new int[0]);
+        return store;
+    }
+
+    /**
+     * Coordinates are written as their components separated by comma, which are parsed exactly.
+     */
+    private static String formatCoord(Coord coord) {
+        if (coord.hasZ())
+            return coord.getX() + "," + coord.getY() + "," + coord.getZ();
+
+        return coord.getX() + "," + coord.getY();
+    }
+
+    private static Coord parseCoord(String s) {
+        String[] xyz = s.split(",");
+        if (xyz.length == 3)
+            return new Coord(Double.parseDouble(xyz[0]), Double.parseDouble(xyz[1]), Double.parseDouble(xyz[2]));
+
+        return new Coord(Double.parseDouble(xyz[0]), Double.parseDouble(xyz[1]));
+    }
+
+    private static int[] readColumn(FileChannel channel, ByteBuffer buf, long pos, int n) throws IOException {
+        int[] column = new int[n];
+        int block = READ_BUFFER_SIZE / Integer.BYTES;
+        for (int i = 0; i < n; ) {
+            int length = Math.min(n - i, block);
+            readFully(channel, buf.clear().limit(length * Integer.BYTES), pos + (long) i * Integer.BYTES);
+            buf.flip().asIntBuffer().get(column, i, length);
+            i += length;
+        }
+        return column;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of event store");
+
+            position += read;
+        }
+    }
+
+    /**
+     * Assigns dense indices to values in order of their first occurrence.
+     * The map of values to indices is only needed while events are added and released by {@link #freeze()}.
+     */
+    private static final class Index<T> {
+
+        private final ArrayList<T> values = new ArrayList<>();
+        private Map<T, Integer> index = new HashMap<>();
+
+        int intern(T value) {
+            if (index == null)
+                throw new IllegalStateException("Values can not be added after the store has been trimmed");
+
+            Integer i = index.get(value);
+            if (i != null)
+                return i;
+
+            // null values, e.g. missing facility ids, are stored as well to get a consistent index
+            index.put(value, values.size());
+            values.add(value);
+            return values.size() - 1;
+        }
+
+        T get(int i) {
+            return values.get(i);
+        }
+
+        /**
+         * Releases the map of values to indices, no values can be added afterwards.
+         */
+        void freeze() {
+            index = null;
+            values.trimToSize();
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            write(out, Object::toString);
+        }
+
+        void write(DataOutputStream out, Function<T, String> format) throws IOException {
+            out.writeInt(values.size());
+            for (T value : values) {
+                if (value == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+
+                byte[] bytes = format.apply(value).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        void read(ByteBuffer buf, Function<String, T> create) {
+            // values are unique in the file and are appended without interning
+            int n = buf.getInt();
+            if (n < 0)
+                throw new IllegalArgumentException("Negative number of values: " + n);
+            if (n > buf.remaining() / Integer.BYTES)
+                throw new BufferUnderflowException();
+
+            values.ensureCapacity(n);
+            for (int i = 0; i < n; i++) {
+                int length = buf.getInt();
+                if (length < 0) {
+                    values.add(null);
+                    continue;
+                }
+
+                if (length > buf.remaining())
+                    throw new BufferUnderflowException();
+
+                byte[] bytes = new byte[length];
+                buf.get(bytes);
+                values.add(create.apply(new String(bytes, StandardCharsets.UTF_8)));
+            }
+
+            index = null;
+        }
+    }
+}
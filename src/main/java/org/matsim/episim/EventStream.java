@@ -0,0 +1,255 @@
+package org.matsim.episim;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the events of a store written by {@link EventStore#write(Path)} chunk by chunk on a background thread, instead of holding them in memory.
+ * <p>
+ * The events of a day are read sequentially and handed over in chunks of a fixed size. Only a fixed number of chunks exists, which are reused
+ * after the caller has {@link #release(Chunk) released} them, so that memory is bounded regardless of the number of events.
+ * After the last chunk of a day the reader starts from the beginning again, so that the next day is read ahead as well.
+ * If a day can not be replayed completely, its remaining chunks need to be skipped with {@link #skipDay(Chunk)}.
+ */
+final class EventStream implements Closeable {
+
+    /**
+     * Signals the end of a day.
+     */
+    private static final Chunk END = new Chunk(0);
+
+    private final FileChannel channel;
+    private final EventStore store;
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+
+    private volatile IOException error;
+    private volatile boolean closed = false;
+
+    /**
+     * Whether the remaining chunks of a day could not be skipped, in which case the position within the days is unknown.
+     */
+    private boolean misaligned = false;
+
+    /**
+     * @param path      file the store was read from
+     * @param store     store opened with {@link EventStore#readHeader(Path)}, which will hold the current chunk
+     * @param chunkSize number of events per chunk
+     * @param readAhead number of chunks read ahead of the caller
+     */
+    EventStream(Path path, EventStore store, int chunkSize, int readAhead) throws IOException {
+        if (store.getDataPosition() < 0)
+            throw new IllegalArgumentException("Store was not read from a file");
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.store = store;
+        this.full = new ArrayBlockingQueue<>(readAhead + 1);
+        this.free = new ArrayBlockingQueue<>(readAhead + 1);
+        for (int i = 0; i < readAhead + 1; i++)
+            free.add(new Chunk(chunkSize));
+
+        this.thread = new Thread(this::run, "EventStream");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Loads the next chunk of the current day into the store, the previous chunk must have been released before.
+     *
+     * @return the loaded chunk, or null if all events of the day have been read
+     */
+    Chunk next() {
+        // the reader has stopped and will not put any further chunks
+        if (error != null)
+            throw new UncheckedIOException(error);
+
+        if (misaligned)
+            throw new IllegalStateException("Events can not be read anymore, because a day could not be skipped");
+
+        Chunk chunk;
+        try {
+            chunk = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading events", e);
+        }
+
+        if (error != null)
+            throw new UncheckedIOException(error);
+
+        if (chunk == END)
+            return null;
+
+        store.setColumns(chunk.offset, chunk.end, chunk.kind, chunk.time, chunk.person, chunk.location, chunk.link, chunk.actType, chunk.coord);
+        return chunk;
+    }
+
+    /**
+     * Hands a chunk back to the reader, its events must not be accessed afterwards.
+     */
+    void release(Chunk chunk) {
+        free.add(chunk);
+    }
+
+    /**
+     * Releases {@code current} and skips all remaining chunks of the current day, e.g. when replaying a chunk has failed,
+     * so that the next call of {@link #next()} returns the first chunk of the next day.
+     * If this is not possible, all further calls of {@link #next()} fail.
+     *
+     * @param current chunk of the day that has not been released yet, if any
+     */
+    void skipDay(@Nullable Chunk current) {
+        if (current != null)
+            release(current);
+
+        // after an error the reader has put its last chunk and stopped
+        if (error == null) {
+            try {
+                for (Chunk chunk = full.take(); chunk != END; chunk = full.take())
+                    release(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                misaligned = true;
+            }
+        }
+
+        if (error != null)
+            misaligned = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Loop of the reader thread.
+     */
+    private void run() {
+        int n = store.size();
+        long pos = store.getDataPosition();
+
+        try {
+            while (!closed) {
+                for (int offset = 0; offset < n; ) {
+                    Chunk chunk = free.take();
+                    int end = Math.min(n, offset + chunk.kind.length);
+
+                    read(chunk.kind, pos + offset, end - offset);
+
+                    long column = pos + n;
+                    for (int[] c : new int[][]{chunk.time, chunk.person, chunk.location, chunk.link, chunk.actType, chunk.coord}) {
+                        read(c, column + 4L * offset, end - offset, chunk.buffer);
+                        column += 4L * n;
+                    }
+
+                    chunk.offset = offset;
+                    chunk.end = end;
+                    full.put(chunk);
+                    offset = end;
+                }
+
+                full.put(END);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            if (closed)
+                return;
+
+            error = e;
+            // wakes up the caller, which will see the error
+            try {
+                full.put(END);
+            } catch (InterruptedException ignored) {
+                // closed
+            }
+        }
+    }
+
+    private void read(byte[] dst, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst, 0, length);
+        readFully(buf, position);
+    }
+
+    private void read(int[] dst, long position, int length, ByteBuffer buf) throws IOException {
+        buf.clear().limit(4 * length);
+        readFully(buf, position);
+        buf.flip();
+        buf.asIntBuffer().get(dst, 0, length);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of events file");
+
+            position += read;
+        }
+    }
+
+    /**
+     * Columns of consecutive events, which are reused once released.
+     */
+    static final class Chunk {
+
+        private final byte[] kind;
+        private final int[] time;
+        private final int[] person;
+        private final int[] location;
+        private final int[] link;
+        private final int[] actType;
+        private final int[] coord;
+
+        /**
+         * Buffer used to read the int columns.
+         */
+        private final ByteBuffer buffer;
+
+        private int offset;
+        private int end;
+
+        private Chunk(int size) {
+            kind = new byte[size];
+            time = new int[size];
+            person = new int[size];
+            location = new int[size];
+            link = new int[size];
+            actType = new int[size];
+            coord = new int[size];
+            buffer = ByteBuffer.allocateDirect(4 * size);
+        }
+
+        /**
+         * Index of the first event in this chunk.
+         */
+        int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Index after the last event in this chunk.
+         */
+        int getEnd() {
+            return end;
+        }
+    }
+}
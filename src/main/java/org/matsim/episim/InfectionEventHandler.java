@@ -2,36 +2,42 @@ package org.matsim.episim;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
-import org.apache.commons.lang3.NotImplementedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.events.*;
-import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
-import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
-import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.api.internal.HasPersonId;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.gbl.Gbl;
+import org.matsim.core.events.handler.EventHandler;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.episim.EpisimPerson.DiseaseStatus;
+import org.matsim.episim.jfr.DayEvent;
 import org.matsim.episim.model.*;
 import org.matsim.episim.policy.ShutdownPolicy;
 import org.matsim.facilities.Facility;
 import org.matsim.utils.objectattributes.attributable.Attributes;
 import org.matsim.vehicles.Vehicle;
 
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
  * Main event handler of episim.
  */
-public final class InfectionEventHandler implements ActivityEndEventHandler, PersonEntersVehicleEventHandler, PersonLeavesVehicleEventHandler, ActivityStartEventHandler {
+public final class InfectionEventHandler implements EventHandler {
     // Some notes:
 
     // * Especially if we repeat the same events file, then we do not have complete mixing.  So it may happen that only some subpopulations gets infected.
@@ -49,9 +55,71 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
 
     private static final Logger log = LogManager.getLogger(InfectionEventHandler.class);
 
-    private final Map<Id<Person>, EpisimPerson> personMap = new LinkedHashMap<>();
-    private final Map<Id<Vehicle>, EpisimVehicle> vehicleMap = new LinkedHashMap<>();
-    private final Map<Id<Facility>, EpisimFacility> pseudoFacilityMap = new LinkedHashMap<>();
+    /**
+     * Random streams, which are seeded independently for each event or person, see {@link EpisimUtils#seed(long, int, int, long)}.
+     */
+    static final int CONTACT_STREAM = 0;
+    static final int END_OF_DAY_STREAM = 1;
+    static final int PROGRESSION_STREAM = 2;
+    static final int INITIAL_INFECTION_STREAM = 3;
+
+    /**
+     * Seed of all random streams.
+     */
+    private static final long SEED = 1;
+
+    /**
+     * Events that are replayed, set by {@link #init(EventStore)}.
+     */
+    private EventStore store;
+
+    /**
+     * Vehicles indexed by their index in the {@link EventStore}.
+     */
+    private EpisimVehicle[] vehicles;
+
+    /**
+     * Slots of all persons in order of their first appearance, persons are stored at their index in the {@link EventStore}.
+     */
+    private int[] personSlots;
+    private int numberOfPersons;
+
+    /**
+     * Views on all persons in order of their first appearance.
+     */
+    private final List<EpisimPerson> personList = new PersonList();
+
+    /**
+     * Number of persons per status, maintained by the persons themselves.
+     */
+    private final StatusCounts statusCounts = new StatusCounts();
+
+    /**
+     * State of all persons, set by {@link #init(EventStore)}.
+     */
+    private PersonStore personStore;
+
+    /**
+     * Persons with pending state transitions, see {@link ProgressionModel#nextTransitionDay(EpisimPerson, int)}.
+     */
+    private final TransitionSchedule transitions = new TransitionSchedule();
+
+    /**
+     * Handled events and their pseudo facilities, possibly shared with other handlers replaying the same events.
+     */
+    private EventIndex index;
+
+    /**
+     * Containers of the pseudo facilities of {@link #index}, created by {@link #createFacilities()}.
+     * Only the first {@link #numberOfFacilities} entries are used.
+     */
+    private EpisimFacility[] facilities = new EpisimFacility[0];
+    private int numberOfFacilities = 0;
+
+    /**
+     * Simulation of whole days in parallel, created at the first day it is used.
+     */
+    private ParallelReplay parallelReplay;
 
     /**
      * Holds the current restrictions in place for all the activities.
@@ -71,7 +139,12 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
     /**
      * Models the process of persons infecting each other during activities.
      */
-    private final InfectionModel infectionModel;
+    private final AbstractInfectionModel infectionModel;
+
+    /**
+     * Infections and contacts of the current day, which are applied after all events have been handled.
+     */
+    private final DeferredEffects deferredEffects = new DeferredEffects();
 
     /**
      * Scenario with population information.
@@ -81,11 +154,35 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
     private final EpisimConfigGroup episimConfig;
     private final EventsManager eventsManager;
     private final EpisimReporting reporting;
-    private final Random rnd = new Random(1);
 
+    /**
+     * Writes snapshots in the background, created with the first snapshot.
+     */
+    private SnapshotWriter snapshotWriter;
+
+    /**
+     * Snapshot to restore by {@link #init(EventStore)}, null afterwards.
+     */
+    @Nullable
+    private Snapshot snapshot;
+
+    private final Path outputDirectory;
+
+    private final Random rnd = new Random();
+    private final Random infectionRnd = new Random();
+    private final Random progressionRnd = new Random();
+
+    /**
+     * Number of initial infections that still have to be placed.
+     */
     private int cnt = 10;
     private int iteration = 0;
 
+    /**
+     * Timing of the current day, written after its events have been replayed.
+     */
+    private final DayTiming timing = new DayTiming();
+
     /**
      * Most recent infection report.
      */
@@ -93,14 +190,31 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
 
     @Inject
     public InfectionEventHandler(Config config, Scenario scenario, EventsManager eventsManager) {
+        this(config, scenario, eventsManager, null);
+    }
+
+    /**
+     * Creates a handler that continues the simulation from a snapshot, which is restored by {@link #init(EventStore)}.
+     * The config may differ from the one of the snapshot only in the policy and output, e.g. to simulate several policies from a common day.
+     *
+     * @param snapshot state to restore, see {@link #snapshot()}
+     */
+    public InfectionEventHandler(Config config, Scenario scenario, EventsManager eventsManager, @Nullable Snapshot snapshot) {
         this.episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
         this.scenario = scenario;
         this.eventsManager = eventsManager;
+        this.snapshot = snapshot;
+        this.outputDirectory = Paths.get(config.controler().getOutputDirectory());
         this.policy = episimConfig.createPolicyInstance();
         this.restrictions = episimConfig.createInitialRestrictions();
-        this.reporting = new EpisimReporting(config);
-        this.progressionModel = new DefaultProgressionModel(rnd, episimConfig);
-        this.infectionModel = new DefaultInfectionModel(rnd, episimConfig, reporting,
+        this.reporting = new EpisimReporting(config, snapshot);
+        this.progressionModel = new DefaultProgressionModel(progressionRnd, episimConfig);
+        this.infectionModel = createInfectionModel(infectionRnd);
+        this.infectionModel.setDeferredEffects(deferredEffects);
+    }
+
+    private AbstractInfectionModel createInfectionModel(Random rnd) {
+        return new DefaultInfectionModel(rnd, episimConfig, reporting,
                 episimConfig.getPutTracablePersonsInQuarantine() == EpisimConfigGroup.PutTracablePersonsInQuarantine.yes);
     }
 
@@ -110,17 +224,28 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
      * @param actType activity type
      */
     public static boolean shouldHandleActivityEvent(HasPersonId event, String actType) {
-        // ignore drt and stage activities
-        return !event.getPersonId().toString().startsWith("drt") && !event.getPersonId().toString().startsWith("rt")
-                && !TripStructureUtils.isStageActivityType(actType);
+        return shouldHandleActivityEvent(event.getPersonId(), actType);
     }
 
     /**
      * Whether a Person event (e.g. {@link PersonEntersVehicleEvent} should be handled.
      */
     public static boolean shouldHandlePersonEvent(HasPersonId event) {
+        return shouldHandlePersonEvent(event.getPersonId());
+    }
+
+    static boolean shouldHandleActivityEvent(Id<Person> personId, String actType) {
+        // ignore drt and stage activities
+        return shouldHandleActivities(personId) && !TripStructureUtils.isStageActivityType(actType);
+    }
+
+    static boolean shouldHandleActivities(Id<Person> personId) {
+        return !personId.toString().startsWith("drt") && !personId.toString().startsWith("rt");
+    }
+
+    static boolean shouldHandlePersonEvent(Id<Person> personId) {
         // ignore pt drivers and drt
-        String id = event.getPersonId().toString();
+        String id = personId.toString();
         return !id.startsWith("pt_pt") && !id.startsWith("pt_tr") && !id.startsWith("drt") && !id.startsWith("rt");
     }
 
@@ -138,109 +263,206 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
         return iteration > 0 && !progressionModel.canProgress(report);
     }
 
-    @Override
-    public void handleEvent(ActivityEndEvent activityEndEvent) {
-        double now = activityEndEvent.getTime();
+    /**
+     * Initializes the registries of persons, vehicles and facilities for the events in {@code store}.
+     * Needs to be called once before events are replayed.
+     */
+    public void init(EventStore store) {
+        init(new EventIndex(store, episimConfig.getFacilitiesHandling()));
+    }
+
+    /**
+     * Initializes the handler for the events of {@code replay}. The information derived from the events is shared with all other handlers
+     * initialized with the same {@link ReplayHandler}, so that several simulations can replay the same events concurrently,
+     * see {@link ReplayHandler#getEventIndex(EpisimConfigGroup.FacilitiesHandling)}.
+     */
+    public void init(ReplayHandler replay) {
+        init(replay.getEventIndex(episimConfig.getFacilitiesHandling()));
+    }
+
+    private void init(EventIndex index) {
+        this.index = index;
+        this.store = index.getStore();
+        this.personSlots = new int[store.getNumberOfPersons()];
+        this.personStore = new PersonStore(store.getNumberOfPersons(), statusCounts, eventsManager,
+                episimConfig.getTracingDays(), episimConfig.getTracingCapacity());
+        this.vehicles = new EpisimVehicle[store.getNumberOfVehicles()];
+
+        createFacilities();
+        if (store.isLoaded())
+            log.info("Resolved {} pseudo facilities", numberOfFacilities);
+
+        if (snapshot != null) {
+            try {
+                readState(snapshot.openState());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not restore snapshot", e);
+            }
+
+            log.info("Restored state of day {} from {}", iteration, snapshot.getOutputDirectory());
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Resolves the pseudo facilities of all events that are currently held in memory by the {@link EventStore}.
+     * Needs to be called whenever other events have been loaded, see {@link EventStream}.
+     */
+    void resolveEvents() {
+        index.resolveEvents();
+        createFacilities();
+    }
+
+    /**
+     * Creates the containers for pseudo facilities that have been added to the index since the last call.
+     */
+    private void createFacilities() {
+        int n = index.getNumberOfFacilities();
+        if (n > facilities.length)
+            facilities = Arrays.copyOf(facilities, Math.max(n, facilities.length * 2));
+
+        for (; numberOfFacilities < n; numberOfFacilities++)
+            facilities[numberOfFacilities] = new EpisimFacility(index.getFacilityId(numberOfFacilities));
+    }
+
+    /**
+     * Handles the event with index {@code i} of the {@link EventStore}.
+     *
+     * @param now corrected time of the event
+     */
+    void handleEvent(int i, double now) {
+        switch (store.getKind(i)) {
+            case EventStore.ACTIVITY_START:
+                handleActivityStart(i, now);
+                break;
+            case EventStore.ACTIVITY_END:
+                handleActivityEnd(i, now);
+                break;
+            case EventStore.ENTERS_VEHICLE:
+                handlePersonEntersVehicle(i, now);
+                break;
+            case EventStore.LEAVES_VEHICLE:
+                handlePersonLeavesVehicle(i, now);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event kind: " + store.getKind(i));
+        }
+    }
+
+    private void handleActivityEnd(int i, double now) {
 
-        if (!shouldHandleActivityEvent(activityEndEvent, activityEndEvent.getActType())) {
+        int facility = index.getFacility(i);
+        if (facility < 0) {
             return;
         }
 
-        EpisimPerson episimPerson = this.personMap.computeIfAbsent(activityEndEvent.getPersonId(), this::createPerson);
-        Id<Facility> episimFacilityId = createEpisimFacilityId(activityEndEvent);
+        String actType = store.getActivityTypeName(store.getActivityType(i));
+        EpisimPerson episimPerson = getOrCreatePerson(store.getPerson(i));
 
+        EpisimFacility episimFacility = facilities[facility];
         if (iteration == 0) {
-            EpisimFacility episimFacility = this.pseudoFacilityMap.computeIfAbsent(episimFacilityId, EpisimFacility::new);
-            if (episimPerson.getFirstFacilityId() == null) {
+            // the first activity of the day has no start event
+            if (episimPerson.getFirstFacility() == null) {
                 episimFacility.addPerson(episimPerson, 0);
             }
-            infectionModel.infectionDynamicsFacility(episimPerson, episimFacility, now, activityEndEvent.getActType());
-            episimFacility.removePerson(episimPerson.getPersonId());
-            // has moved to reset
-//            handleInitialInfections( now, episimPerson );
-        } else {
-            EpisimFacility episimFacility = ((EpisimFacility) episimPerson.getCurrentContainer());
-            if (!episimFacility.equals(pseudoFacilityMap.get(episimFacilityId))) {
-                throw new IllegalStateException("Something went wrong ...");
-            }
-            infectionModel.infectionDynamicsFacility(episimPerson, episimFacility, now, activityEndEvent.getActType());
-            episimFacility.removePerson(episimPerson.getPersonId());
+        } else if (episimPerson.getCurrentContainer() != episimFacility) {
+            throw new IllegalStateException("Something went wrong ...");
         }
+
+        deferredEffects.setEvent(i);
+        infectionRnd.setSeed(EpisimUtils.seed(SEED, iteration, CONTACT_STREAM, i));
+        long start = timing.dynamicsTimed ? System.nanoTime() : 0;
+        infectionModel.infectionDynamicsFacility(episimPerson, episimFacility, now, actType);
+        if (timing.dynamicsTimed)
+            timing.facilityDynamics += System.nanoTime() - start;
+        episimFacility.removePerson(episimPerson);
+
         if (episimPerson.getCurrentPositionInTrajectory() == 0) {
-            episimPerson.setFirstFacilityId(episimFacilityId.toString());
+            episimPerson.setFirstFacility(episimFacility);
         }
-        handlePersonTrajectory(episimPerson.getPersonId(), activityEndEvent.getActType());
+        handlePersonTrajectory(episimPerson, actType);
 
     }
 
-    @Override
-    public void handleEvent(PersonEntersVehicleEvent entersVehicleEvent) {
-        double now = entersVehicleEvent.getTime();
+    private void handlePersonEntersVehicle(int i, double now) {
 
-        if (!shouldHandlePersonEvent(entersVehicleEvent)) {
+        if (!index.handleVehicleEvents(store.getPerson(i))) {
             return;
         }
 
         // find the person:
-        EpisimPerson episimPerson = this.personMap.computeIfAbsent(entersVehicleEvent.getPersonId(), this::createPerson);
+        EpisimPerson episimPerson = getOrCreatePerson(store.getPerson(i));
 
         // find the vehicle:
-        EpisimVehicle episimVehicle = this.vehicleMap.computeIfAbsent(entersVehicleEvent.getVehicleId(), EpisimVehicle::new);
+        int vehicle = store.getLocation(i);
+        EpisimVehicle episimVehicle = vehicles[vehicle];
+        if (episimVehicle == null) {
+            episimVehicle = new EpisimVehicle(store.getVehicleId(vehicle));
+            vehicles[vehicle] = episimVehicle;
+        }
 
         // add person to vehicle and memorize entering time:
         episimVehicle.addPerson(episimPerson, now);
 
     }
 
-    @Override
-    public void handleEvent(PersonLeavesVehicleEvent leavesVehicleEvent) {
-        double now = leavesVehicleEvent.getTime();
+    private void handlePersonLeavesVehicle(int i, double now) {
 
-        if (!shouldHandlePersonEvent(leavesVehicleEvent)) {
+        if (!index.handleVehicleEvents(store.getPerson(i))) {
             return;
         }
 
         // find vehicle:
-        EpisimVehicle episimVehicle = this.vehicleMap.get(leavesVehicleEvent.getVehicleId());
+        EpisimVehicle episimVehicle = vehicles[store.getLocation(i)];
 
-        EpisimPerson episimPerson = episimVehicle.getPerson(leavesVehicleEvent.getPersonId());
+        EpisimPerson episimPerson = personStore.getPerson(store.getPerson(i));
 
+        deferredEffects.setEvent(i);
+        infectionRnd.setSeed(EpisimUtils.seed(SEED, iteration, CONTACT_STREAM, i));
+        long start = timing.dynamicsTimed ? System.nanoTime() : 0;
         infectionModel.infectionDynamicsVehicle(episimPerson, episimVehicle, now);
+        if (timing.dynamicsTimed)
+            timing.vehicleDynamics += System.nanoTime() - start;
 
         // remove person from vehicle:
-        episimVehicle.removePerson(episimPerson.getPersonId());
+        episimVehicle.removePerson(episimPerson);
     }
 
-    @Override
-    public void handleEvent(ActivityStartEvent activityStartEvent) {
-        double now = activityStartEvent.getTime();
+    private void handleActivityStart(int i, double now) {
 
-        if (!shouldHandleActivityEvent(activityStartEvent, activityStartEvent.getActType())) {
+        int facility = index.getFacility(i);
+        if (facility < 0) {
             return;
         }
 
-        // find the person:
-        EpisimPerson episimPerson = this.personMap.computeIfAbsent(activityStartEvent.getPersonId(), this::createPerson);
+        String actType = store.getActivityTypeName(store.getActivityType(i));
 
-        // create pseudo facility id that includes the activity type:
-        Id<Facility> episimFacilityId = createEpisimFacilityId(activityStartEvent);
+        // find the person:
+        EpisimPerson episimPerson = getOrCreatePerson(store.getPerson(i));
 
         // find the facility
-        EpisimFacility episimFacility = this.pseudoFacilityMap.computeIfAbsent(episimFacilityId, EpisimFacility::new);
+        EpisimFacility episimFacility = facilities[facility];
+
+        // the trajectory is updated first, so that the facility knows the current activity
+        handlePersonTrajectory(episimPerson, actType);
 
         // add person to facility
         episimFacility.addPerson(episimPerson, now);
 
-        episimPerson.setLastFacilityId(episimFacilityId.toString());
+    }
 
-        handlePersonTrajectory(episimPerson.getPersonId(), activityStartEvent.getActType());
+    private EpisimPerson getOrCreatePerson(int person) {
+        if (personStore.hasPerson(person))
+            return personStore.getPerson(person);
 
+        personSlots[numberOfPersons++] = person;
+        return createPerson(person, store.getPersonId(person));
     }
 
     /**
      * Create a new person and lookup attributes from scenario.
      */
-    private EpisimPerson createPerson(Id<Person> id) {
+    private EpisimPerson createPerson(int index, Id<Person> id) {
 
         Person person = scenario.getPopulation().getPersons().get(id);
         Attributes attrs;
@@ -251,30 +473,10 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
             attrs = new Attributes();
         }
 
-        return new EpisimPerson(id, attrs, eventsManager);
-    }
-
-    private Id<Facility> createEpisimFacilityId(HasFacilityId event) {
-        if (episimConfig.getFacilitiesHandling() == EpisimConfigGroup.FacilitiesHandling.snz) {
-            return Id.create(event.getFacilityId(), Facility.class);
-        } else if (episimConfig.getFacilitiesHandling() == EpisimConfigGroup.FacilitiesHandling.bln) {
-            if (event instanceof ActivityStartEvent) {
-                ActivityStartEvent theEvent = (ActivityStartEvent) event;
-                return Id.create(theEvent.getActType().split("_")[0] + "_" + theEvent.getLinkId().toString(), Facility.class);
-            } else if (event instanceof ActivityEndEvent) {
-                ActivityEndEvent theEvent = (ActivityEndEvent) event;
-                return Id.create(theEvent.getActType().split("_")[0] + "_" + theEvent.getLinkId().toString(), Facility.class);
-            } else {
-                throw new IllegalStateException("unexpected event type=" + ((Event) event).getEventType());
-            }
-        } else {
-            throw new NotImplementedException(Gbl.NOT_IMPLEMENTED);
-        }
-
+        return new EpisimPerson(index, id, attrs, personStore);
     }
 
-    private void handlePersonTrajectory(Id<Person> personId, String trajectoryElement) {
-        EpisimPerson person = personMap.get(personId);
+    private void handlePersonTrajectory(EpisimPerson person, String trajectoryElement) {
         if (person.getCurrentPositionInTrajectory() + 1 == person.getTrajectory().size()) {
             return;
         }
@@ -285,29 +487,13 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
         person.addToTrajectory(trajectoryElement);
     }
 
-//    private void handleInitialInfections( double now, EpisimPerson personWrapper ) {
-//        // initial infections:
-//        if (cnt > 0) {
-//            personWrapper.setDiseaseStatus( now , EpisimPerson.DiseaseStatus.infectedButNotContagious );
-//            personWrapper.setInfectionDate(iteration);
-//            log.warn(" person " + personWrapper.getPersonId() + " has initial infection");
-//            cnt--;
-//            if (scenario != null) {
-//                final Person person = PopulationUtils.findPerson(personWrapper.getPersonId(), scenario);
-//                if (person != null) {
-//                    person.getAttributes().putAttribute(AgentSnapshotInfo.marker, true);
-//                }
-//            }
-//        }
-//    }
-
     private void handleInitialInfections() {
         if (this.iteration != 1) {
             return;
         }
-        Object[] personArray = this.personMap.values().toArray();
+        rnd.setSeed(EpisimUtils.seed(SEED, iteration, INITIAL_INFECTION_STREAM, 0));
         do {
-            EpisimPerson randomPerson = (EpisimPerson) personArray[rnd.nextInt(personArray.length)];
+            EpisimPerson randomPerson = personList.get(rnd.nextInt(personList.size()));
             if (randomPerson.getDiseaseStatus() == DiseaseStatus.susceptible) {
                 randomPerson.setDiseaseStatus(0, DiseaseStatus.infectedButNotContagious);
                 randomPerson.setInfectionDate(0);
@@ -322,55 +508,434 @@ public final class InfectionEventHandler implements ActivityEndEventHandler, Per
     @Override
     public void reset(int iteration) {
 
-        for (EpisimPerson person : personMap.values()) {
+        timing.start(iteration, infectionModel.getContacts());
+        timing.dynamicsTimed = episimConfig.isTimeInfectionDynamics();
+        DayEvent event = new DayEvent();
+        event.begin();
+
+        // persons are handled one after another, changes are applied directly
+        infectionModel.setDeferredEffects(null);
+        for (EpisimPerson person : personList) {
+            infectionRnd.setSeed(EpisimUtils.seed(SEED, this.iteration, END_OF_DAY_STREAM, person.getIndex()));
             checkAndHandleEndOfNonCircularTrajectory(person);
             person.setCurrentPositionInTrajectory(0);
+            if (person.isInContainer())
+                person.getCurrentContainer().setTrajectoryPosition(person, 0);
+        }
+        infectionModel.setDeferredEffects(deferredEffects);
+
+        // trajectories are complete after the first day
+        if (this.iteration == 0 && iteration > 0)
+            internTrajectories();
+
+        timing.trajectories = timing.lap();
+
+        // only persons with a transition due today are updated
+        scheduleChangedPersons(iteration);
+        List<EpisimPerson> due = transitions.poll(iteration);
+        for (EpisimPerson person : due) {
+            progressionRnd.setSeed(EpisimUtils.seed(SEED, iteration, PROGRESSION_STREAM, person.getIndex()));
             progressionModel.updateState(person, iteration);
         }
 
+        for (EpisimPerson person : due)
+            transitions.schedule(person, progressionModel.nextTransitionDay(person, iteration + 1));
+
+        scheduleChangedPersons(iteration + 1);
+
         this.iteration = iteration;
 
         handleInitialInfections();
+        timing.progression = timing.lap();
 
-        this.report = reporting.createReport(personMap, iteration);
+        this.report = reporting.createReport(statusCounts, iteration);
 
         reporting.reporting(report, iteration);
+        timing.report = timing.lap();
 
         ImmutableMap<String, ShutdownPolicy.Restriction> im = ImmutableMap.copyOf(this.restrictions);
         policy.updateRestrictions(report, im);
         infectionModel.setRestrictionsForIteration(iteration, im);
         reporting.reportRestrictions(restrictions, iteration);
+        timing.policy = timing.lap();
+
+        if (event.shouldCommit()) {
+            event.day = iteration;
+            event.transitions = due.size();
+            event.infected = report.nTotalInfected;
+            event.contagious = report.nContagious;
+            event.commit();
+        }
 
     }
 
+    /**
+     * Replaces the trajectories recorded during the first day by shared templates, persons with the same activities share one instance.
+     */
+    private void internTrajectories() {
+        String[] names = new String[store.getNumberOfActivityTypes()];
+        Map<String, Integer> index = new HashMap<>();
+        for (int a = 0; a < names.length; a++) {
+            names[a] = store.getActivityTypeName(a);
+            index.put(names[a], a);
+        }
+
+        Map<Trajectory, Trajectory> templates = new HashMap<>();
+        for (EpisimPerson person : personList) {
+            List<String> trajectory = person.getTrajectory();
+            int[] activityTypes = new int[trajectory.size()];
+            for (int i = 0; i < activityTypes.length; i++)
+                activityTypes[i] = index.get(trajectory.get(i));
+
+            person.setTrajectory(templates.computeIfAbsent(new Trajectory(activityTypes, names), t -> t));
+        }
+
+        log.info("Interned trajectories of {} persons into {} templates", personList.size(), templates.size());
+    }
+
+    /**
+     * Schedules the next transition of all persons that were created or changed since the last call.
+     */
+    private void scheduleChangedPersons(int day) {
+        for (EpisimPerson person : statusCounts.drainChanged())
+            transitions.schedule(person, progressionModel.nextTransitionDay(person, day));
+    }
+
     private void checkAndHandleEndOfNonCircularTrajectory(EpisimPerson person) {
-        Id<Facility> firstFacilityId = Id.create(person.getFirstFacilityId(), Facility.class);
+        EpisimFacility firstFacility = person.getFirstFacility();
         if (person.isInContainer()) {
-            Id<?> lastFacilityId = person.getCurrentContainer().getContainerId();
-            if (this.pseudoFacilityMap.containsKey(lastFacilityId) && !firstFacilityId.equals(lastFacilityId)) {
-                EpisimFacility lastFacility = this.pseudoFacilityMap.get(lastFacilityId);
+            EpisimContainer<?> lastContainer = person.getCurrentContainer();
+            if (lastContainer instanceof EpisimFacility && firstFacility != lastContainer) {
+                EpisimFacility lastFacility = (EpisimFacility) lastContainer;
                 infectionModel.infectionDynamicsFacility(person, lastFacility, (iteration + 1) * 86400d, person.getTrajectory().get(person.getTrajectory().size() - 1));
-                lastFacility.removePerson(person.getPersonId());
-                EpisimFacility firstFacility = this.pseudoFacilityMap.get(firstFacilityId);
+                lastFacility.removePerson(person);
                 firstFacility.addPerson(person, (iteration + 1) * 86400d);
             }
-            if (this.vehicleMap.containsKey(lastFacilityId)) {
-                EpisimVehicle lastVehicle = this.vehicleMap.get(lastFacilityId);
+            if (lastContainer instanceof EpisimVehicle) {
+                EpisimVehicle lastVehicle = (EpisimVehicle) lastContainer;
                 infectionModel.infectionDynamicsVehicle(person, lastVehicle, (iteration + 1) * 86400d);
-                lastVehicle.removePerson(person.getPersonId());
-                EpisimFacility firstFacility = this.pseudoFacilityMap.get(firstFacilityId);
+                lastVehicle.removePerson(person);
                 firstFacility.addPerson(person, (iteration + 1) * 86400d);
             }
         } else {
-            EpisimFacility firstFacility = this.pseudoFacilityMap.get(firstFacilityId);
             firstFacility.addPerson(person, (iteration + 1) * 86400d);
         }
     }
 
+    /**
+     * Applies the infections and contacts collected while the events of the day were handled one by one.
+     */
+    void applyDeferredEffects() {
+        DeferredEffects.apply(Collections.singletonList(deferredEffects), infectionModel);
+        deferredEffects.clear();
+    }
+
+    /**
+     * Writes the timing of the current day, after all of its events have been replayed.
+     *
+     * @param replay nano seconds needed to replay the events
+     * @param events number of events replayed
+     */
+    void finishDay(long replay, long events) {
+        if (!timing.isStarted())
+            return;
+
+        if (parallelReplay != null)
+            parallelReplay.collectTiming(timing);
+
+        timing.finish(replay, events, infectionModel.getContacts());
+        reporting.reportTiming(timing);
+    }
+
+    /**
+     * Whether the current day can be simulated in parallel by {@link #replayParallel()}.
+     * The first day is always simulated sequentially, because trajectories are still being built.
+     * Days can only be simulated in parallel if all events are held in memory, streamed days are always simulated sequentially.
+     * This can not be derived from the store, which holds all events if they fit into one chunk, but releases them to the stream nonetheless.
+     *
+     * @param streamed whether events are streamed, see {@link EpisimConfigGroup#isStreamEvents()}
+     */
+    boolean canReplayParallel(boolean streamed) {
+        return episimConfig.getNumberOfThreads() > 1 && iteration > 0 && !streamed;
+    }
+
+    /**
+     * Simulates the whole day with containers in parallel, instead of handling the events one by one.
+     */
+    void replayParallel() {
+        if (parallelReplay == null) {
+            // containers are ordered by facilities first and vehicles second
+            EpisimContainer<?>[] containers = new EpisimContainer<?>[numberOfFacilities + vehicles.length];
+            System.arraycopy(facilities, 0, containers, 0, numberOfFacilities);
+            System.arraycopy(vehicles, 0, containers, numberOfFacilities, vehicles.length);
+
+            int[] eventContainer = new int[store.size()];
+            for (int i = 0; i < store.size(); i++) {
+                byte kind = store.getKind(i);
+                if (kind == EventStore.ACTIVITY_START || kind == EventStore.ACTIVITY_END)
+                    eventContainer[i] = index.getFacility(i);
+                else
+                    eventContainer[i] = index.handleVehicleEvents(store.getPerson(i)) ? numberOfFacilities + store.getLocation(i) : -1;
+            }
+
+            parallelReplay = new ParallelReplay(store, eventContainer, containers, personStore, personList,
+                    episimConfig.getNumberOfThreads(), SEED, episimConfig.isTimeInfectionDynamics(), this::createInfectionModel, infectionModel);
+        }
+
+        parallelReplay.replay(iteration, infectionModel.getRestrictions());
+    }
+
+    /**
+     * Copies the complete state after the events of the current day have been replayed, i.e. before the next call of {@link #reset(int)}.
+     * The snapshot can be restored by other handlers, see {@link #InfectionEventHandler(Config, Scenario, EventsManager, Snapshot)}.
+     */
+    public Snapshot snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes, 1 << 16))) {
+                Snapshot.writeHeader(out, iteration, reporting.getOutputLines());
+                writeState(out);
+            }
+
+            return new Snapshot(bytes.toByteArray(), outputDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write snapshot", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the complete state to {@code path}. The state is copied into memory first and written on a background thread.
+     * A simulation can be resumed from the file with {@link EpisimConfigGroup#setStartFromSnapshot(String)}.
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        if (snapshotWriter == null)
+            snapshotWriter = new SnapshotWriter();
+
+        snapshotWriter.write(path, snapshot().getData());
+    }
+
+    /**
+     * Writes the state of persons, containers, the schedule of transitions and the restrictions.
+     * Random numbers are drawn from streams seeded by day, see {@link EpisimUtils#seed(long, int, int, long)}, so that no random state needs
+     * to be written. The policies only depend on the report and restrictions of the day and have no state of their own.
+     */
+    private void writeState(DataOutput out) throws IOException {
+        out.writeInt(store.size());
+        out.writeInt(store.getNumberOfPersons());
+        out.writeInt(store.getNumberOfVehicles());
+        out.writeInt(iteration);
+        out.writeInt(cnt);
+
+        out.writeInt(restrictions.size());
+        for (Map.Entry<String, ShutdownPolicy.Restriction> e : restrictions.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeDouble(e.getValue().getRemainingFraction());
+        }
+
+        // facilities by id, because their order depends on when they have been resolved
+        Map<EpisimContainer<?>, Integer> facilityIndex = new IdentityHashMap<>();
+        out.writeInt(numberOfFacilities);
+        for (int f = 0; f < numberOfFacilities; f++) {
+            out.writeUTF(facilities[f].getContainerId().toString());
+            facilityIndex.put(facilities[f], f);
+        }
+
+        for (EpisimVehicle vehicle : vehicles)
+            out.writeBoolean(vehicle != null);
+
+        personStore.write(out);
+
+        // trajectories are written as shared templates of activity types
+        Map<String, Integer> activityTypes = new HashMap<>();
+        for (int a = 0; a < store.getNumberOfActivityTypes(); a++)
+            activityTypes.put(store.getActivityTypeName(a), a);
+
+        Map<List<String>, Integer> templates = new HashMap<>();
+        List<List<String>> templateList = new ArrayList<>();
+        int[] personTemplate = new int[personList.size()];
+        for (int p = 0; p < personTemplate.length; p++) {
+            personTemplate[p] = templates.computeIfAbsent(personList.get(p).getTrajectory(), t -> {
+                templateList.add(t);
+                return templateList.size() - 1;
+            });
+        }
+
+        out.writeInt(templateList.size());
+        for (List<String> template : templateList) {
+            out.writeInt(template.size());
+            for (String act : template)
+                out.writeInt(activityTypes.get(act));
+        }
+
+        out.writeInt(personList.size());
+        for (int p = 0; p < personTemplate.length; p++) {
+            EpisimPerson person = personList.get(p);
+            out.writeInt(person.getIndex());
+            out.writeInt(personTemplate[p]);
+            out.writeInt(person.getFirstFacility() != null ? facilityIndex.get(person.getFirstFacility()) : -1);
+            out.writeInt(transitions.getScheduled(person));
+        }
+
+        List<EpisimPerson> changed = statusCounts.getChanged();
+        out.writeInt(changed.size());
+        for (EpisimPerson person : changed)
+            out.writeInt(person.getIndex());
+
+        // occupants in their order within the containers, which is relevant for drawing contacts
+        for (int f = 0; f < numberOfFacilities; f++)
+            writeOccupants(out, facilities[f]);
+
+        for (EpisimVehicle vehicle : vehicles) {
+            if (vehicle != null)
+                writeOccupants(out, vehicle);
+        }
+    }
+
+    private static void writeOccupants(DataOutput out, EpisimContainer<?> container) throws IOException {
+        List<EpisimPerson> occupants = container.getPersons();
+        out.writeInt(occupants.size());
+        for (int pos = 0; pos < occupants.size(); pos++) {
+            out.writeInt(occupants.get(pos).getIndex());
+            out.writeDouble(container.getContainerEnteringTime(pos));
+            out.writeInt(container.getTrajectoryPosition(pos));
+        }
+    }
+
+    /**
+     * Replaces the state by the one written with {@link #writeState(DataOutput)}.
+     */
+    private void readState(DataInput in) throws IOException {
+        if (in.readInt() != store.size() || in.readInt() != store.getNumberOfPersons() || in.readInt() != store.getNumberOfVehicles())
+            throw new IllegalStateException("Snapshot has been written for different events");
+
+        iteration = in.readInt();
+        cnt = in.readInt();
+
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            double remainingFraction = in.readDouble();
+            if (!restrictions.containsKey(name))
+                throw new IllegalStateException("Snapshot has restrictions for unknown activity " + name);
+
+            restrictions.put(name, ShutdownPolicy.Restriction.newInstance(remainingFraction));
+        }
+
+        // maps facility index of the snapshot to the current one
+        int[] facility = new int[in.readInt()];
+        for (int f = 0; f < facility.length; f++)
+            facility[f] = index.resolve(Id.create(in.readUTF(), Facility.class));
+
+        createFacilities();
+
+        for (int v = 0; v < vehicles.length; v++) {
+            if (in.readBoolean())
+                vehicles[v] = new EpisimVehicle(store.getVehicleId(v));
+        }
+
+        // persons are counted with their restored status when they are created
+        personStore.read(in);
+
+        Trajectory[] templates = new Trajectory[in.readInt()];
+        String[] names = new String[store.getNumberOfActivityTypes()];
+        for (int a = 0; a < names.length; a++)
+            names[a] = store.getActivityTypeName(a);
+
+        for (int t = 0; t < templates.length; t++) {
+            int[] activityTypes = new int[in.readInt()];
+            for (int i = 0; i < activityTypes.length; i++)
+                activityTypes[i] = in.readInt();
+
+            templates[t] = new Trajectory(activityTypes, names);
+        }
+
+        n = in.readInt();
+        int[] scheduled = new int[n];
+        for (int p = 0; p < n; p++) {
+            EpisimPerson person = getOrCreatePerson(in.readInt());
+            Trajectory trajectory = templates[in.readInt()];
+            // trajectories are still recorded during the first day
+            if (iteration == 0)
+                person.getTrajectory().addAll(trajectory);
+            else
+                person.setTrajectory(trajectory);
+
+            int first = in.readInt();
+            if (first >= 0)
+                person.setFirstFacility(facilities[facility[first]]);
+
+            scheduled[p] = in.readInt();
+        }
+
+        statusCounts.drainChanged();
+        for (int p = 0; p < n; p++)
+            transitions.schedule(personList.get(p), scheduled[p]);
+
+        n = in.readInt();
+        for (int i = 0; i < n; i++)
+            statusCounts.markChanged(personStore.getPerson(in.readInt()));
+
+        for (int f = 0; f < facility.length; f++)
+            readOccupants(in, facilities[facility[f]]);
+
+        for (EpisimVehicle vehicle : vehicles) {
+            if (vehicle != null)
+                readOccupants(in, vehicle);
+        }
+
+        // restrictions of the current day, which would have been set by the last reset
+        ImmutableMap<String, ShutdownPolicy.Restriction> im = ImmutableMap.copyOf(this.restrictions);
+        infectionModel.setRestrictionsForIteration(iteration, im);
+    }
+
+    private void readOccupants(DataInput in, EpisimContainer<?> container) throws IOException {
+        int n = in.readInt();
+        for (int pos = 0; pos < n; pos++) {
+            EpisimPerson person = personStore.getPerson(in.readInt());
+            container.addOccupant(person, in.readDouble(), in.readInt());
+        }
+
+        container.attachOccupants();
+    }
+
+    /**
+     * Writes all remaining output. Needs to be called once at the end of the simulation.
+     */
+    public void close() {
+        reporting.close();
+
+        if (snapshotWriter != null) {
+            try {
+                snapshotWriter.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
     public Collection<EpisimPerson> getPersons() {
         // I have nothing against given out the map if someone needs it, but as long as nobody needs it, we can as well give out this partial view and thus
         // keep implemention options open.  kai, mar'20
-        return Collections.unmodifiableCollection(personMap.values());
+        return Collections.unmodifiableCollection(personList);
+    }
+
+    /**
+     * Creates the views on persons when they are accessed.
+     */
+    private final class PersonList extends AbstractList<EpisimPerson> {
+
+        @Override
+        public EpisimPerson get(int index) {
+            if (index >= numberOfPersons)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numberOfPersons);
+
+            return personStore.getPerson(personSlots[index]);
+        }
+
+        @Override
+        public int size() {
+            return numberOfPersons;
+        }
     }
 
     public static final class EpisimVehicle extends EpisimContainer<Vehicle> {
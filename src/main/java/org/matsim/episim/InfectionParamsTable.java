@@ -0,0 +1,104 @@
+package org.matsim.episim;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled lookup of {@link EpisimConfigGroup.InfectionParams} by activity type, which replaces the prefix matching
+ * of {@link EpisimConfigGroup.InfectionParams#includesActivity(String)} during the simulation.
+ * <p>
+ * The params are copied when the table is created, i.e. at the start of the simulation. Later changes to the config are not reflected.
+ * Every activity type is matched only once and assigned an {@link Entry}, all further lookups are a single hash lookup.
+ */
+public final class InfectionParamsTable {
+
+    private final EpisimConfigGroup.InfectionParams[] params;
+    private final String[] containerNames;
+    private final double[] contactIntensities;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public InfectionParamsTable(EpisimConfigGroup config) {
+        Collection<EpisimConfigGroup.InfectionParams> values = config.getContainerParams().values();
+
+        this.params = values.toArray(new EpisimConfigGroup.InfectionParams[0]);
+        this.containerNames = new String[params.length];
+        this.contactIntensities = new double[params.length];
+
+        for (int i = 0; i < params.length; i++) {
+            containerNames[i] = params[i].getContainerName();
+            contactIntensities[i] = params[i].getContactIntensity();
+        }
+    }
+
+    /**
+     * Returns the entry for an activity type, or for a vehicle id in case of vehicles.
+     */
+    public Entry get(String actType) {
+        Entry entry = entries.get(actType);
+        if (entry == null)
+            entry = entries.computeIfAbsent(actType, this::compile);
+
+        return entry;
+    }
+
+    /**
+     * Number of {@link EpisimConfigGroup.InfectionParams} in this table.
+     */
+    public int size() {
+        return params.length;
+    }
+
+    private Entry compile(String actType) {
+        int first = -1;
+        double contactIntensity = -1;
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].includesActivity(actType)) {
+                if (first < 0)
+                    first = i;
+
+                contactIntensity = contactIntensities[i];
+            }
+        }
+
+        return new Entry(first, first >= 0 ? containerNames[first] : null, contactIntensity);
+    }
+
+    /**
+     * Resolved params of an activity type.
+     */
+    public static final class Entry {
+
+        private final int paramsIndex;
+        private final String containerName;
+        private final double contactIntensity;
+
+        private Entry(int paramsIndex, String containerName, double contactIntensity) {
+            this.paramsIndex = paramsIndex;
+            this.containerName = containerName;
+            this.contactIntensity = contactIntensity;
+        }
+
+        /**
+         * Index of the first matching params, -1 if no params match.
+         */
+        public int getParamsIndex() {
+            return paramsIndex;
+        }
+
+        /**
+         * Container name of the first matching params, which is also the key of its restriction. Null if no params match.
+         */
+        public String getContainerName() {
+            return containerName;
+        }
+
+        /**
+         * Contact intensity of the last matching params, -1 if no params match.
+         */
+        public double getContactIntensity() {
+            return contactIntensity;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.matsim.episim;
 import java.io.IOException;
 import java.util.Arrays;
 
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
@@ -61,11 +62,22 @@ class KNEventsInfection{
 
                 EventsManager events = EventsUtils.createEventsManager();
                 
-                events.addHandler( new InfectionEventHandler( config, ScenarioUtils.createScenario(config), events  ) );
+                Scenario scenario = ScenarioUtils.createScenario(config);
+                InfectionEventHandler eventHandler = new InfectionEventHandler( config, scenario, events  );
+                events.addHandler( eventHandler );
+
+                ReplayHandler replay = new ReplayHandler( episimConfig, scenario );
+                eventHandler.init( replay.getEventStore() );
+
                 ControlerUtils.checkConfigConsistencyAndWriteToLog(config, "Just before starting iterations");
-                for ( int iteration=0 ; iteration<=300 ; iteration++ ){
-                        events.resetHandlers( iteration );
-                        EventsUtils.readEvents( events, episimConfig.getInputEventsFile() );
+                try {
+                        for ( int iteration=0 ; iteration<=300 ; iteration++ ){
+                                events.resetHandlers( iteration );
+                                replay.replayEvents( eventHandler, null, iteration );
+                        }
+                } finally {
+                        eventHandler.close();
+                        replay.close();
                 }
 
                 OutputDirectoryLogging.closeOutputDirLogging();
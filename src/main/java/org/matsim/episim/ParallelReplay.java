@@ -0,0 +1,289 @@
+package org.matsim.episim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.episim.model.AbstractInfectionModel;
+import org.matsim.episim.model.DeferredEffects;
+import org.matsim.episim.policy.ShutdownPolicy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Simulates whole days with the containers partitioned across the threads of a {@link ForkJoinPool}.
+ * <p>
+ * Events are grouped by the container they belong to and every container replays its own events in order.
+ * Persons are not modified while a day is simulated: occupants are added to containers without updating their current container,
+ * their trajectory positions are precomputed per event, and infections as well as traced contacts are collected as {@link DeferredEffects}.
+ * These are applied at the end of the day.
+ * Random numbers are drawn from a stream seeded by day and event, and the effects are applied in the order of their events,
+ * as in the sequential simulation. Results are therefore the same as with a single thread, regardless of the scheduling and the number of threads.
+ */
+final class ParallelReplay {
+
+    private static final Logger log = LogManager.getLogger(ParallelReplay.class);
+
+    private final EventStore store;
+    private final PersonStore persons;
+    private final Collection<EpisimPerson> personList;
+    private final EpisimContainer<?>[] containers;
+    private final AbstractInfectionModel model;
+    private final Function<Random, AbstractInfectionModel> modelFactory;
+    private final long seed;
+    private final boolean timeDynamics;
+    private final ForkJoinPool pool;
+
+    /**
+     * Events grouped by container, the events of container {@code c} are stored from {@code containerStart[c]} to {@code containerStart[c + 1]}.
+     */
+    private final int[] containerStart;
+    private final int[] events;
+
+    /**
+     * Trajectory position of the person when entering a container, for each entry of {@link #events}.
+     */
+    private final int[] positions;
+
+    /**
+     * Containers are processed in chunks, chunk {@code k} contains the containers from {@code chunkStart[k]} to {@code chunkStart[k + 1]}.
+     */
+    private final int[] chunkStart;
+    private final List<DeferredEffects> effects = new ArrayList<>();
+
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(this::createWorker);
+
+    /**
+     * All workers that have been created, to collect their timing.
+     */
+    private final List<Worker> allWorkers = new ArrayList<>();
+
+    /**
+     * @param eventContainer container index for each event, -1 if the event is not handled
+     * @param containers     all facilities and vehicles
+     * @param persons        store of all persons
+     * @param personList     all persons
+     * @param timeDynamics   whether the time of each evaluation of the infection dynamics is measured
+     * @param modelFactory   creates the infection model used by the worker threads
+     * @param model          model to apply the deferred effects
+     */
+    ParallelReplay(EventStore store, int[] eventContainer, EpisimContainer<?>[] containers, PersonStore persons,
+                   Collection<EpisimPerson> personList, int threads, long seed, boolean timeDynamics,
+                   Function<Random, AbstractInfectionModel> modelFactory, AbstractInfectionModel model) {
+        this.store = store;
+        this.persons = persons;
+        this.personList = personList;
+        this.containers = containers;
+        this.model = model;
+        this.modelFactory = modelFactory;
+        this.seed = seed;
+        this.timeDynamics = timeDynamics;
+        this.pool = new ForkJoinPool(threads);
+
+        // counting sort of events by container, which keeps their order
+        this.containerStart = new int[containers.length + 1];
+        int n = 0;
+        for (int c : eventContainer) {
+            if (c >= 0) {
+                containerStart[c + 1]++;
+                n++;
+            }
+        }
+
+        for (int c = 0; c < containers.length; c++)
+            containerStart[c + 1] += containerStart[c];
+
+        this.events = new int[n];
+        this.positions = new int[n];
+
+        int[] next = containerStart.clone();
+        int[] trajectoryPosition = new int[persons.size()];
+        for (int i = 0; i < eventContainer.length; i++) {
+            int c = eventContainer[i];
+            if (c < 0)
+                continue;
+
+            // same as InfectionEventHandler#handlePersonTrajectory after the first day
+            int p = store.getPerson(i);
+            byte kind = store.getKind(i);
+            if (kind == EventStore.ACTIVITY_START && trajectoryPosition[p] + 1 != persons.getTrajectory(p).size())
+                trajectoryPosition[p]++;
+
+            events[next[c]] = i;
+            positions[next[c]++] = trajectoryPosition[p];
+
+            if (kind == EventStore.ACTIVITY_END && trajectoryPosition[p] + 1 != persons.getTrajectory(p).size())
+                trajectoryPosition[p]++;
+        }
+
+        // contiguous chunks of roughly the same number of events, several per thread to balance the load
+        int target = Math.max(1, n / (threads * 8));
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int c = 0; c < containers.length; c++) {
+            if (containerStart[c + 1] - containerStart[starts.get(starts.size() - 1)] >= target && c + 1 < containers.length)
+                starts.add(c + 1);
+        }
+        starts.add(containers.length);
+
+        this.chunkStart = starts.stream().mapToInt(Integer::intValue).toArray();
+        for (int k = 0; k < chunkStart.length - 1; k++)
+            effects.add(new DeferredEffects());
+
+        log.info("Simulating {} containers in {} chunks with {} threads", containers.length, effects.size(), threads);
+    }
+
+    /**
+     * Simulates one day and applies all changes of persons at the end.
+     */
+    void replay(int iteration, Map<String, ShutdownPolicy.Restriction> restrictions) {
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int k = 0; k < effects.size(); k++) {
+            int chunk = k;
+            tasks.add(() -> {
+                workers.get().run(chunk, iteration, restrictions);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating day " + iteration, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new IllegalStateException("Error while simulating day " + iteration, e.getCause());
+        }
+
+        // persons know their container again
+        for (EpisimPerson person : personList)
+            person.detachContainer();
+
+        for (EpisimContainer<?> container : containers) {
+            if (container != null)
+                container.attachOccupants();
+        }
+
+        DeferredEffects.apply(effects, model);
+        effects.forEach(DeferredEffects::clear);
+    }
+
+    private synchronized Worker createWorker() {
+        Worker worker = new Worker();
+        allWorkers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Adds the time spent replaying and in infection dynamics and the contacts evaluated by all threads since the last call.
+     */
+    synchronized void collectTiming(DayTiming timing) {
+        for (Worker worker : allWorkers) {
+            timing.work += worker.work;
+            timing.facilityDynamics += worker.facilityDynamics;
+            timing.vehicleDynamics += worker.vehicleDynamics;
+            timing.contacts += worker.infectionModel.getContacts() - worker.contacts;
+
+            worker.work = worker.facilityDynamics = worker.vehicleDynamics = 0;
+            worker.contacts = worker.infectionModel.getContacts();
+        }
+    }
+
+    /**
+     * State of one thread, which is reused for all chunks it processes.
+     */
+    private final class Worker {
+
+        private final Random rnd = new Random();
+        private final AbstractInfectionModel infectionModel = modelFactory.apply(rnd);
+
+        /**
+         * Position of persons in the container currently processed.
+         */
+        private final int[] positionOf = new int[persons.size()];
+        private int day = -1;
+
+        /**
+         * Nano seconds spent in chunks and in infection dynamics and contacts already collected, see {@link #collectTiming(DayTiming)}.
+         */
+        private long work;
+        private long facilityDynamics;
+        private long vehicleDynamics;
+        private long contacts;
+
+        private void run(int chunk, int iteration, Map<String, ShutdownPolicy.Restriction> restrictions) {
+
+            long begin = System.nanoTime();
+
+            if (day != iteration) {
+                infectionModel.setRestrictionsForIteration(iteration, restrictions);
+                day = iteration;
+            }
+
+            DeferredEffects chunkEffects = effects.get(chunk);
+            infectionModel.setDeferredEffects(chunkEffects);
+
+            for (int c = chunkStart[chunk]; c < chunkStart[chunk + 1]; c++) {
+                if (containerStart[c] == containerStart[c + 1])
+                    continue;
+
+                EpisimContainer<?> container = containers[c];
+                List<EpisimPerson> occupants = container.getPersons();
+                for (int pos = 0; pos < occupants.size(); pos++)
+                    positionOf[occupants.get(pos).getIndex()] = pos;
+
+                for (int j = containerStart[c]; j < containerStart[c + 1]; j++) {
+                    int i = events[j];
+                    double now = EpisimUtils.getCorrectedTime(store.getTime(i), iteration);
+                    EpisimPerson person = persons.getPerson(store.getPerson(i));
+
+                    switch (store.getKind(i)) {
+                        case EventStore.ACTIVITY_START:
+                        case EventStore.ENTERS_VEHICLE:
+                            positionOf[person.getIndex()] = container.addOccupant(person, now, positions[j]);
+                            break;
+                        case EventStore.ACTIVITY_END:
+                        case EventStore.LEAVES_VEHICLE:
+                            int pos = positionOf[person.getIndex()];
+                            if (pos >= occupants.size() || !occupants.get(pos).equals(person))
+                                throw new IllegalStateException(String.format("Person %s is not in container %s",
+                                        person.getPersonId(), container.getContainerId()));
+
+                            chunkEffects.setEvent(i);
+                            rnd.setSeed(EpisimUtils.seed(seed, iteration, InfectionEventHandler.CONTACT_STREAM, i));
+                            long start = timeDynamics ? System.nanoTime() : 0;
+                            infectionModel.infectionDynamicsContainer(container, pos, now);
+                            if (timeDynamics) {
+                                if (store.getKind(i) == EventStore.ACTIVITY_END)
+                                    facilityDynamics += System.nanoTime() - start;
+                                else
+                                    vehicleDynamics += System.nanoTime() - start;
+                            }
+
+                            int moved = container.removeOccupant(pos);
+                            if (moved >= 0)
+                                positionOf[moved] = pos;
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown event kind: " + store.getKind(i));
+                    }
+                }
+            }
+
+            infectionModel.setDeferredEffects(null);
+            work += System.nanoTime() - begin;
+        }
+    }
+}
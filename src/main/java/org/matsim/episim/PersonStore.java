@@ -0,0 +1,318 @@
+package org.matsim.episim;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * State of all persons in arrays, indexed by the slot of the person.
+ * {@link EpisimPerson} is only a view on one slot, which is created on demand, so that the state of millions of persons is stored compactly
+ * and can be scanned without following references. Containers are stored by their index in {@link #containers}.
+ * <p>
+ * Stores are created with a fixed number of slots for the persons of a simulation, further slots can be added with {@link #addSlot()}.
+ */
+final class PersonStore {
+
+    private static final EpisimPerson.DiseaseStatus[] DISEASE_STATUS = EpisimPerson.DiseaseStatus.values();
+    private static final EpisimPerson.QuarantineStatus[] QUARANTINE_STATUS = EpisimPerson.QuarantineStatus.values();
+
+    /**
+     * Counts of all persons in this store, may be null.
+     */
+    private final StatusCounts counts;
+
+    /**
+     * Receives the status changes of all persons.
+     */
+    private final EventsManager eventsManager;
+    private final ContactLog contacts;
+
+    private int size;
+
+    /**
+     * All containers persons have been in, a container knows its own index, see {@link EpisimContainer#getStoreIndex()}.
+     */
+    private final List<EpisimContainer<?>> containers = new ArrayList<>();
+
+    private Id<Person>[] personId;
+    private Attributes[] attributes;
+
+    private byte[] diseaseStatus;
+    private byte[] quarantineStatus;
+    private int[] infectionDate;
+    private int[] quarantineDate;
+
+    /**
+     * Activities of the day, recorded during the first day and replaced by a shared {@link Trajectory} afterwards.
+     */
+    private List<String>[] trajectory;
+    private int[] trajectoryPosition;
+
+    /**
+     * Index of the current container, -1 if the person is in none.
+     */
+    private int[] container;
+    private int[] containerPosition;
+
+    /**
+     * Index of the facility of the first activity, -1 if not known yet.
+     */
+    private int[] firstFacility;
+
+    /**
+     * Creates a store for {@code size} persons, which are all susceptible and not in quarantine.
+     * Contacts are only traced for one day.
+     */
+    PersonStore(int size, @Nullable StatusCounts counts, EventsManager eventsManager) {
+        this(size, counts, eventsManager, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a store for {@code size} persons.
+     *
+     * @param tracingDays     number of days for which contacts are kept
+     * @param tracingCapacity maximum number of traced contacts per day
+     */
+    @SuppressWarnings("unchecked")
+    PersonStore(int size, @Nullable StatusCounts counts, EventsManager eventsManager, int tracingDays, int tracingCapacity) {
+        this.counts = counts;
+        this.eventsManager = eventsManager;
+        this.contacts = new ContactLog(this, tracingDays, tracingCapacity);
+        this.size = size;
+        this.personId = new Id[size];
+        this.attributes = new Attributes[size];
+        this.diseaseStatus = new byte[size];
+        this.quarantineStatus = new byte[size];
+        this.infectionDate = new int[size];
+        this.quarantineDate = new int[size];
+        this.trajectory = new List[size];
+        this.trajectoryPosition = new int[size];
+        this.container = new int[size];
+        this.containerPosition = new int[size];
+        this.firstFacility = new int[size];
+
+        clear(0, size);
+    }
+
+    /**
+     * Sets the initial state of the slots from {@code from} to {@code to} (exclusive).
+     */
+    private void clear(int from, int to) {
+        Arrays.fill(diseaseStatus, from, to, (byte) EpisimPerson.DiseaseStatus.susceptible.ordinal());
+        Arrays.fill(quarantineStatus, from, to, (byte) EpisimPerson.QuarantineStatus.no.ordinal());
+        Arrays.fill(infectionDate, from, to, -1);
+        Arrays.fill(quarantineDate, from, to, -1);
+        Arrays.fill(container, from, to, -1);
+        Arrays.fill(containerPosition, from, to, -1);
+        Arrays.fill(firstFacility, from, to, -1);
+    }
+
+    /**
+     * Adds a slot for another person at the end of the store.
+     *
+     * @return the new slot
+     */
+    int addSlot() {
+        if (size == personId.length) {
+            int capacity = Math.max(16, personId.length * 2);
+            personId = Arrays.copyOf(personId, capacity);
+            attributes = Arrays.copyOf(attributes, capacity);
+            diseaseStatus = Arrays.copyOf(diseaseStatus, capacity);
+            quarantineStatus = Arrays.copyOf(quarantineStatus, capacity);
+            infectionDate = Arrays.copyOf(infectionDate, capacity);
+            quarantineDate = Arrays.copyOf(quarantineDate, capacity);
+            trajectory = Arrays.copyOf(trajectory, capacity);
+            trajectoryPosition = Arrays.copyOf(trajectoryPosition, capacity);
+            container = Arrays.copyOf(container, capacity);
+            containerPosition = Arrays.copyOf(containerPosition, capacity);
+            firstFacility = Arrays.copyOf(firstFacility, capacity);
+        }
+
+        clear(size, size + 1);
+        return size++;
+    }
+
+    /**
+     * Number of slots.
+     */
+    int size() {
+        return size;
+    }
+
+    @Nullable
+    StatusCounts getCounts() {
+        return counts;
+    }
+
+    EventsManager getEventsManager() {
+        return eventsManager;
+    }
+
+    /**
+     * Initializes a slot with the person that it holds.
+     */
+    void setPerson(int slot, Id<Person> id, Attributes attrs) {
+        personId[slot] = id;
+        attributes[slot] = attrs;
+        trajectory[slot] = new ArrayList<>();
+    }
+
+    /**
+     * Whether the slot has been initialized with {@link #setPerson(int, Id, Attributes)}.
+     */
+    boolean hasPerson(int slot) {
+        return personId[slot] != null;
+    }
+
+    /**
+     * Creates a view on the person at {@code slot}.
+     */
+    EpisimPerson getPerson(int slot) {
+        return new EpisimPerson(this, slot);
+    }
+
+    Id<Person> getPersonId(int slot) {
+        return personId[slot];
+    }
+
+    Attributes getAttributes(int slot) {
+        return attributes[slot];
+    }
+
+    ContactLog getContacts() {
+        return contacts;
+    }
+
+    EpisimPerson.DiseaseStatus getDiseaseStatus(int slot) {
+        return DISEASE_STATUS[diseaseStatus[slot]];
+    }
+
+    void setDiseaseStatus(int slot, EpisimPerson.DiseaseStatus status) {
+        diseaseStatus[slot] = (byte) status.ordinal();
+    }
+
+    EpisimPerson.QuarantineStatus getQuarantineStatus(int slot) {
+        return QUARANTINE_STATUS[quarantineStatus[slot]];
+    }
+
+    void setQuarantineStatus(int slot, EpisimPerson.QuarantineStatus status) {
+        quarantineStatus[slot] = (byte) status.ordinal();
+    }
+
+    int getInfectionDate(int slot) {
+        return infectionDate[slot];
+    }
+
+    void setInfectionDate(int slot, int date) {
+        infectionDate[slot] = date;
+    }
+
+    int getQuarantineDate(int slot) {
+        return quarantineDate[slot];
+    }
+
+    void setQuarantineDate(int slot, int date) {
+        quarantineDate[slot] = date;
+    }
+
+    List<String> getTrajectory(int slot) {
+        return trajectory[slot];
+    }
+
+    void setTrajectory(int slot, List<String> t) {
+        trajectory[slot] = t;
+    }
+
+    int getTrajectoryPosition(int slot) {
+        return trajectoryPosition[slot];
+    }
+
+    void setTrajectoryPosition(int slot, int position) {
+        trajectoryPosition[slot] = position;
+    }
+
+    @Nullable
+    EpisimContainer<?> getContainer(int slot) {
+        return container[slot] >= 0 ? containers.get(container[slot]) : null;
+    }
+
+    void setContainer(int slot, @Nullable EpisimContainer<?> c) {
+        container[slot] = c != null ? indexOf(c) : -1;
+    }
+
+    int getContainerPosition(int slot) {
+        return containerPosition[slot];
+    }
+
+    void setContainerPosition(int slot, int position) {
+        containerPosition[slot] = position;
+    }
+
+    @Nullable
+    InfectionEventHandler.EpisimFacility getFirstFacility(int slot) {
+        return firstFacility[slot] >= 0 ? (InfectionEventHandler.EpisimFacility) containers.get(firstFacility[slot]) : null;
+    }
+
+    void setFirstFacility(int slot, InfectionEventHandler.EpisimFacility facility) {
+        firstFacility[slot] = indexOf(facility);
+    }
+
+    /**
+     * Index of the container in this store, containers are added when they are used the first time.
+     */
+    private int indexOf(EpisimContainer<?> c) {
+        int index = c.getStoreIndex();
+        if (index < 0) {
+            index = containers.size();
+            containers.add(c);
+            c.setStoreIndex(index);
+        } else if (index >= containers.size() || containers.get(index) != c) {
+            throw new IllegalStateException(String.format("Container %s belongs to another store", c.getContainerId()));
+        }
+
+        return index;
+    }
+
+    /**
+     * Writes the state and traced contacts of all slots, except the containers, which can be restored with {@link #read(DataInput)}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.write(diseaseStatus, 0, size);
+        out.write(quarantineStatus, 0, size);
+        for (int[] column : new int[][]{infectionDate, quarantineDate, trajectoryPosition}) {
+            for (int i = 0; i < size; i++)
+                out.writeInt(column[i]);
+        }
+
+        contacts.write(out);
+    }
+
+    /**
+     * Replaces the state of all slots by the one written with {@link #write(DataOutput)}, the number of slots needs to be the same.
+     * Should be called before persons are created, so that they are counted with their restored status.
+     */
+    void read(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n != size)
+            throw new IllegalStateException(String.format("State was written for %d persons, but store has %d", n, size));
+
+        in.readFully(diseaseStatus, 0, n);
+        in.readFully(quarantineStatus, 0, n);
+        for (int[] column : new int[][]{infectionDate, quarantineDate, trajectoryPosition}) {
+            for (int i = 0; i < n; i++)
+                column[i] = in.readInt();
+        }
+
+        contacts.read(in);
+    }
+}
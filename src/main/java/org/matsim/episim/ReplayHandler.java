@@ -1,29 +1,64 @@
 package org.matsim.episim;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
 import com.google.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.events.*;
 import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.handler.BasicEventHandler;
 
 import javax.annotation.Nullable;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * Handler that replays events from {@link EpisimConfigGroup#getInputEventsFile()} with corrected time and attributes.
+ * Events are held in a compact {@link EventStore} and dispatched directly to the {@link InfectionEventHandler}.
+ * <p>
+ * Parsed events are cached in binary format, see {@link EpisimConfigGroup#getEventsCacheFolder()}, so that
+ * subsequent runs with the same events file don't need to parse the xml again.
+ * If {@link EpisimConfigGroup#isStreamEvents()} is set, events are read from the cache by an {@link EventStream} each day.
  */
-public final class ReplayHandler {
+public final class ReplayHandler implements Closeable {
 
     private static final Logger log = LogManager.getLogger(ReplayHandler.class);
 
+    /**
+     * Number of events per chunk when streaming, and number of chunks read ahead.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int READ_AHEAD = 2;
+
     private final Scenario scenario;
-    private final List<Event> events = new ArrayList<>();
+    private final EventStore store;
+
+    /**
+     * Reads events each day, null if all events are held in memory.
+     */
+    @Nullable
+    private final EventStream stream;
+
+    /**
+     * Information derived from the events, shared by all handlers replaying them, see {@link #getEventIndex(EpisimConfigGroup.FacilitiesHandling)}.
+     */
+    private final Map<EpisimConfigGroup.FacilitiesHandling, EventIndex> indices = new EnumMap<>(EpisimConfigGroup.FacilitiesHandling.class);
 
     /**
      * Constructor with optional scenario.
@@ -32,66 +67,320 @@ public final class ReplayHandler {
     public ReplayHandler(EpisimConfigGroup config, @Nullable Scenario scenario) {
         this.scenario = scenario;
 
+        if (config.isStreamEvents()) {
+            Path cache = getCachePath(config);
+            if (cache == null)
+                throw new IllegalStateException("Events can only be streamed from local files, not from " + config.getInputEventsFile());
+
+            try {
+                if (!Files.exists(cache)) {
+                    log.warn("Events cache {} does not exist, all events need to be read into memory once", cache);
+                    createCache(config);
+                }
+
+                EventStore header;
+                try {
+                    header = EventStore.readHeader(cache);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not read events cache, all events need to be read into memory once", e);
+                    createCache(config);
+                    header = EventStore.readHeader(cache);
+                }
+
+                this.store = header;
+                this.stream = new EventStream(cache, store, CHUNK_SIZE, READ_AHEAD);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open events cache " + cache, e);
+            }
+
+            log.info("Streaming {} events from {}", store.size(), cache);
+        } else {
+            this.store = loadEvents(config);
+            this.stream = null;
+            logEvents();
+        }
+    }
+
+    /**
+     * Replays events of an existing store.
+     */
+    ReplayHandler(EventStore store, @Nullable Scenario scenario) {
+        this.scenario = scenario;
+        this.store = store;
+        this.stream = null;
+        logEvents();
+    }
+
+    private void logEvents() {
+        log.info("Read in {} events, with time range {} - {}", store.size(), store.getTime(0),
+                store.getTime(store.size() - 1));
+    }
+
+    /**
+     * Loads events from the cache if present, otherwise the events file will be parsed and a new cache entry created.
+     */
+    static EventStore loadEvents(EpisimConfigGroup config) {
+
+        Path cache = getCachePath(config);
+        if (cache != null && Files.exists(cache)) {
+            try {
+                log.info("Loading events from cache {}", cache);
+                return EventStore.read(cache);
+            } catch (IOException | RuntimeException e) {
+                // corrupt caches are replaced below
+                log.warn("Could not read events cache, parsing events file instead", e);
+            }
+        }
+
+        EventStore store = readEventsFile(config.getInputEventsFile());
+
+        if (cache != null) {
+            try {
+                writeCache(store, cache);
+            } catch (IOException e) {
+                log.warn("Could not write events cache " + cache, e);
+            }
+        }
+
+        return store;
+    }
+
+    /**
+     * Parses the events file and writes it to the cache, even if it already exists.
+     *
+     * @return path of the written cache
+     */
+    public static Path createCache(EpisimConfigGroup config) throws IOException {
+        Path cache = getCachePath(config);
+        if (cache == null)
+            throw new IllegalArgumentException("Events can only be cached for local files, not for " + config.getInputEventsFile());
+
+        writeCache(readEventsFile(config.getInputEventsFile()), cache);
+        return cache;
+    }
+
+    /**
+     * Location of the cache entry for the configured events file, which is identified by its absolute path, size and modification time.
+     * Only if these are not available, the hash of its content is used instead.
+     *
+     * @return null if events are not read from a local file.
+     */
+    @Nullable
+    static Path getCachePath(EpisimConfigGroup config) {
+        Path events;
+        try {
+            events = Paths.get(config.getInputEventsFile());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (!Files.isRegularFile(events))
+            return null;
+
+        Path folder = config.getEventsCacheFolder() != null ? Paths.get(config.getEventsCacheFolder()) : events.toAbsolutePath().getParent();
+
+        String hash;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(events, BasicFileAttributes.class);
+            hash = Hashing.murmur3_128().newHasher()
+                    .putString(events.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8)
+                    .putLong(attributes.size())
+                    .putLong(attributes.lastModifiedTime().toMillis())
+                    .hash().toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Could not read attributes of events file, using hash of its content", e);
+            try {
+                hash = MoreFiles.asByteSource(events).hash(Hashing.murmur3_128()).toString();
+            } catch (IOException ex) {
+                log.warn("Could not compute hash of events file", ex);
+                return null;
+            }
+        }
+
+        return folder.resolve(String.format("%s.v%d.%s.episim", events.getFileName(), EventStore.VERSION, hash));
+    }
+
+    private static void writeCache(EventStore store, Path cache) throws IOException {
+        Files.createDirectories(cache.getParent());
+
+        // write to a unique temporary file first, so concurrent runs never see incomplete caches
+        Path tmp = Files.createTempFile(cache.getParent(), cache.getFileName().toString(), ".tmp");
+        try {
+            store.write(tmp);
+            Files.move(tmp, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        log.info("Written events cache {}", cache);
+    }
+
+    private static EventStore readEventsFile(String file) {
+        EventStore store = new EventStore();
         EventsManager manager = EventsUtils.createEventsManager();
-        manager.addHandler(new EventReader());
-        EventsUtils.readEvents(manager, config.getInputEventsFile());
+        EventReader reader = new EventReader(store);
+        manager.addHandler(reader);
+        EventsUtils.readEvents(manager, file);
         manager.finishProcessing();
+        store.trim();
+
+        if (reader.skipped > 0)
+            log.warn("Skipped {} events of unsupported type", reader.skipped);
+        if (store.getRoundedTimes() > 0)
+            log.warn("Rounded time of {} events to full seconds", store.getRoundedTimes());
 
-        log.info("Read in {} events, with time range {} - {}", events.size(), events.get(0).getTime(),
-                events.get(events.size() - 1).getTime());
+        return store;
     }
 
     /**
-     * Replays event add modifies attributes based on current iteration.
+     * Returns the underlying event store. If events are streamed, it only holds the events currently replayed.
      */
-    public void replayEvents(EventsManager manager, int iteration) {
-        for (Event e : events) {
+    public EventStore getEventStore() {
+        return store;
+    }
 
-            if (e instanceof ActivityStartEvent) {
-                ActivityStartEvent ev = (ActivityStartEvent) e;
-                e = new ActivityStartEvent(EpisimUtils.getCorrectedTime(ev.getTime(), iteration), ev.getPersonId(),
-                        ev.getLinkId(), ev.getFacilityId(), ev.getActType(), ev.getCoord());
+    /**
+     * Returns the index of handled events and pseudo facilities for the given facilities handling, which is created once and then shared by all
+     * handlers initialized with {@link InfectionEventHandler#init(ReplayHandler)}.
+     * If events are streamed, handlers using the index must not replay events concurrently.
+     */
+    synchronized EventIndex getEventIndex(EpisimConfigGroup.FacilitiesHandling handling) {
+        return indices.computeIfAbsent(handling, h -> new EventIndex(store, h));
+    }
 
-            } else if (e instanceof ActivityEndEvent) {
-                ActivityEndEvent ev = (ActivityEndEvent) e;
-                e = new ActivityEndEvent(EpisimUtils.getCorrectedTime(ev.getTime(), iteration), ev.getPersonId(),
-                        ev.getLinkId(), ev.getFacilityId(), ev.getActType());
+    /**
+     * Replays all events of a day into the infection handler, with time corrected for the current iteration.
+     * If the day is simulated in parallel, see {@link EpisimConfigGroup#getNumberOfThreads()}, events are passed to {@code output} afterwards.
+     *
+     * @param handler handler receiving the events
+     * @param output  optional handler, which will receive the events as regular MATSim events, e.g. an event writer.
+     *                Only in this case event objects are created.
+     */
+    public void replayEvents(InfectionEventHandler handler, @Nullable BasicEventHandler output, int iteration) {
+        long start = System.nanoTime();
+        long events = replayDay(handler, output, iteration);
+        handler.finishDay(System.nanoTime() - start, events);
+    }
 
-            } else if (e instanceof PersonEntersVehicleEvent) {
-                PersonEntersVehicleEvent ev = (PersonEntersVehicleEvent) e;
-                e = new PersonEntersVehicleEvent(EpisimUtils.getCorrectedTime(e.getTime(), iteration), ev.getPersonId(), ev.getVehicleId());
+    /**
+     * Replays the events of a day, see {@link #replayEvents(InfectionEventHandler, BasicEventHandler, int)}.
+     *
+     * @return number of events replayed
+     */
+    private long replayDay(InfectionEventHandler handler, @Nullable BasicEventHandler output, int iteration) {
 
-            } else if (e instanceof PersonLeavesVehicleEvent) {
-                PersonLeavesVehicleEvent ev = (PersonLeavesVehicleEvent) e;
-                e = new PersonLeavesVehicleEvent(EpisimUtils.getCorrectedTime(e.getTime(), iteration), ev.getPersonId(), ev.getVehicleId());
+        if (handler.canReplayParallel(stream != null)) {
+            handler.replayParallel();
 
+            if (output != null) {
+                for (int i = 0; i < store.size(); i++)
+                    output.handleEvent(createEvent(i, EpisimUtils.getCorrectedTime(store.getTime(i), iteration)));
             }
 
+            return store.size();
+        }
 
-            manager.processEvent(e);
+        long events = 0;
+        if (stream != null) {
+            EventStream.Chunk chunk = null;
+            try {
+                while ((chunk = stream.next()) != null) {
+                    handler.resolveEvents();
+                    replayEvents(handler, output, iteration, chunk.getOffset(), chunk.getEnd());
+                    events += chunk.getEnd() - chunk.getOffset();
+                    stream.release(chunk);
+                    chunk = null;
+                }
+            } catch (RuntimeException e) {
+                // the next day needs to start with its first chunk
+                stream.skipDay(chunk);
+                throw e;
+            }
+        } else {
+            replayEvents(handler, output, iteration, 0, store.size());
+            events = store.size();
         }
+
+        handler.applyDeferredEffects();
+        return events;
+    }
+
+    /**
+     * Replays events from {@code from} to {@code to} one by one.
+     */
+    private void replayEvents(InfectionEventHandler handler, @Nullable BasicEventHandler output, int iteration, int from, int to) {
+        for (int i = from; i < to; i++) {
+
+            double time = EpisimUtils.getCorrectedTime(store.getTime(i), iteration);
+            handler.handleEvent(i, time);
+
+            if (output != null)
+                output.handleEvent(createEvent(i, time));
+        }
+    }
+
+    /**
+     * Stops reading events, if they are streamed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (stream != null)
+            stream.close();
+    }
+
+    /**
+     * Creates a regular MATSim event for an entry of the store.
+     */
+    private Event createEvent(int i, double time) {
+        Id<Person> personId = store.getPersonId(store.getPerson(i));
+        switch (store.getKind(i)) {
+            case EventStore.ACTIVITY_START:
+                Id<Link> linkId = store.getLinkId(store.getLink(i));
+                return new ActivityStartEvent(time, personId, linkId, store.getFacilityId(store.getLocation(i)),
+                        store.getActivityTypeName(store.getActivityType(i)), getCoord(i, linkId));
+            case EventStore.ACTIVITY_END:
+                return new ActivityEndEvent(time, personId, store.getLinkId(store.getLink(i)), store.getFacilityId(store.getLocation(i)),
+                        store.getActivityTypeName(store.getActivityType(i)));
+            case EventStore.ENTERS_VEHICLE:
+                return new PersonEntersVehicleEvent(time, personId, store.getVehicleId(store.getLocation(i)));
+            case EventStore.LEAVES_VEHICLE:
+                return new PersonLeavesVehicleEvent(time, personId, store.getVehicleId(store.getLocation(i)));
+            default:
+                throw new IllegalStateException("Unknown event kind: " + store.getKind(i));
+        }
+    }
+
+    /**
+     * Coordinate of an activity start event, or the coordinate of its link if the event had none and it is available.
+     */
+    @Nullable
+    private Coord getCoord(int i, Id<Link> linkId) {
+        if (store.getCoord(i) >= 0)
+            return store.getCoordinate(store.getCoord(i));
+
+        if (scenario != null && scenario.getNetwork().getLinks().containsKey(linkId)) {
+            Link link = scenario.getNetwork().getLinks().get(linkId);
+            return link.getToNode().getCoord();
+        }
+        return null;
     }
 
     /**
      * Helper class to read events one time.
      */
-    private final class EventReader implements BasicEventHandler {
-        @Override
-        public void handleEvent(Event event) {
+    private static final class EventReader implements BasicEventHandler {
 
-            // Add coordinate information if not present
-            if (event instanceof ActivityStartEvent) {
-                ActivityStartEvent e = (ActivityStartEvent) event;
-                Coord coord = e.getCoord();
-                if (coord == null && scenario != null && scenario.getNetwork().getLinks().containsKey(e.getLinkId())) {
-                    Link link = scenario.getNetwork().getLinks().get(e.getLinkId());
-                    coord = link.getToNode().getCoord();
-                }
+        private final EventStore store;
+        private int skipped = 0;
 
-                event = new ActivityStartEvent(e.getTime(), e.getPersonId(), e.getLinkId(), e.getFacilityId(), e.getActType(), coord);
-            }
+        private EventReader(EventStore store) {
+            this.store = store;
+        }
 
-            events.add(event);
+        @Override
+        public void handleEvent(Event event) {
+            if (!store.add(event))
+                skipped++;
         }
     }
 
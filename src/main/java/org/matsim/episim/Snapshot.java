@@ -0,0 +1,123 @@
+package org.matsim.episim;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serialized state of a simulation after the events of a day have been replayed, see {@link InfectionEventHandler#snapshot()}.
+ * <p>
+ * A snapshot is immutable and can be restored any number of times with
+ * {@link InfectionEventHandler#InfectionEventHandler(Config, Scenario, EventsManager, Snapshot)},
+ * e.g. to simulate several policies that only differ after a common prefix of days.
+ * The output files of the run the snapshot was taken from are continued by the restored simulation.
+ */
+public final class Snapshot {
+
+    private static final int MAGIC = 0x45505353;
+    private static final int VERSION = 2;
+
+    private final byte[] data;
+    private final Path outputDirectory;
+    private final int day;
+    private final Map<String, Long> outputLines;
+
+    /**
+     * Length of the header, after which the state begins.
+     */
+    private final int headerLength;
+
+    /**
+     * @param outputDirectory output directory of the run the snapshot was taken from
+     */
+    Snapshot(byte[] data, Path outputDirectory) throws IOException {
+        this.data = data;
+        this.outputDirectory = outputDirectory;
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a snapshot");
+
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException(String.format("Incompatible snapshot version %d, expected %d", version, VERSION));
+
+        this.day = in.readInt();
+
+        Map<String, Long> lines = new LinkedHashMap<>();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            lines.put(in.readUTF(), in.readLong());
+
+        this.outputLines = Collections.unmodifiableMap(lines);
+        this.headerLength = data.length - bytes.available();
+    }
+
+    /**
+     * Reads a snapshot written by {@link InfectionEventHandler#writeSnapshot(Path)}. Output files are continued from the directory of the file.
+     */
+    public static Snapshot read(Path path) throws IOException {
+        return new Snapshot(Files.readAllBytes(path), path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Writes the header of a snapshot, which is followed by the state.
+     *
+     * @param outputLines number of lines written to each output file, see {@link EpisimReporting#getOutputLines()}
+     */
+    static void writeHeader(DataOutput out, int day, Map<String, Long> outputLines) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(day);
+        out.writeInt(outputLines.size());
+        for (Map.Entry<String, Long> e : outputLines.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
+
+    /**
+     * Day of the snapshot, the restored simulation continues with the day after.
+     */
+    public int getDay() {
+        return day;
+    }
+
+    Path getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    Map<String, Long> getOutputLines() {
+        return outputLines;
+    }
+
+    /**
+     * Size of the snapshot in bytes.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Reads the state after the header.
+     */
+    DataInput openState() {
+        return new DataInputStream(new ByteArrayInputStream(data, headerLength, data.length - headerLength));
+    }
+}
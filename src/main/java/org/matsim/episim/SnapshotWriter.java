@@ -0,0 +1,87 @@
+package org.matsim.episim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes serialized snapshots to disk on a background thread, so that the simulation only waits for copying the state into memory.
+ * <p>
+ * At most one snapshot is pending at a time, a new snapshot waits until the previous one has been written.
+ * Errors of the writer thread are rethrown on the next call.
+ */
+final class SnapshotWriter implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(SnapshotWriter.class);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "episim-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Future<?> pending;
+
+    /**
+     * Writes {@code data} to {@code path}. The file is written under a temporary name first, so that incomplete snapshots are never seen.
+     */
+    synchronized void write(Path path, byte[] data) throws IOException {
+        await();
+
+        pending = executor.submit(() -> {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                Files.write(tmp, data);
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+
+            log.info("Written snapshot {} ({} MB)", path, data.length / (1024 * 1024));
+            return null;
+        });
+    }
+
+    /**
+     * Waits until the pending snapshot has been written.
+     */
+    private void await() throws IOException {
+        if (pending == null)
+            return;
+
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Could not write snapshot", e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Writes the pending snapshot and stops the writer thread.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            await();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.matsim.episim;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Number of persons in each {@link EpisimPerson.DiseaseStatus} and {@link EpisimPerson.QuarantineStatus}.
+ * The counts are updated by the persons on every transition, so that reports can be created at any time without iterating over all persons.
+ * New and changed persons are also remembered until {@link #drainChanged()}, so that their progression can be scheduled.
+ */
+final class StatusCounts {
+
+    private final long[] diseaseStatus = new long[EpisimPerson.DiseaseStatus.values().length];
+    private final long[] quarantineStatus = new long[EpisimPerson.QuarantineStatus.values().length];
+
+    private final List<EpisimPerson> changed = new ArrayList<>();
+    private final BitSet isChanged = new BitSet();
+
+    /**
+     * Adds a new person with its current status.
+     */
+    void add(EpisimPerson person) {
+        diseaseStatus[person.getDiseaseStatus().ordinal()]++;
+        quarantineStatus[person.getQuarantineStatus().ordinal()]++;
+        markChanged(person);
+    }
+
+    void transition(EpisimPerson person, EpisimPerson.DiseaseStatus from, EpisimPerson.DiseaseStatus to) {
+        diseaseStatus[from.ordinal()]--;
+        diseaseStatus[to.ordinal()]++;
+        markChanged(person);
+    }
+
+    void transition(EpisimPerson person, EpisimPerson.QuarantineStatus from, EpisimPerson.QuarantineStatus to) {
+        quarantineStatus[from.ordinal()]--;
+        quarantineStatus[to.ordinal()]++;
+        markChanged(person);
+    }
+
+    /**
+     * Remembers a person as changed, even if its status is the same.
+     */
+    void markChanged(EpisimPerson person) {
+        if (!isChanged.get(person.getIndex())) {
+            isChanged.set(person.getIndex());
+            changed.add(person);
+        }
+    }
+
+    /**
+     * Returns all persons added or changed since the last call and clears them.
+     */
+    List<EpisimPerson> drainChanged() {
+        List<EpisimPerson> result = new ArrayList<>(changed);
+        changed.clear();
+        isChanged.clear();
+        return result;
+    }
+
+    /**
+     * Persons added or changed since the last {@link #drainChanged()}, without clearing them.
+     */
+    List<EpisimPerson> getChanged() {
+        return Collections.unmodifiableList(changed);
+    }
+
+    long get(EpisimPerson.DiseaseStatus status) {
+        return diseaseStatus[status.ordinal()];
+    }
+
+    long get(EpisimPerson.QuarantineStatus status) {
+        return quarantineStatus[status.ordinal()];
+    }
+}
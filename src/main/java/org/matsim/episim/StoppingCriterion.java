@@ -0,0 +1,101 @@
+package org.matsim.episim;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Criterion to stop a simulation early, which is evaluated on the {@link EpisimReporting.InfectionReport} of each day.
+ * Unlike {@link InfectionEventHandler#isFinished()}, the results of a stopped run are not final, but not of interest anymore,
+ * e.g. because a parameter combination of a calibration is clearly off-target.
+ */
+@FunctionalInterface
+public interface StoppingCriterion {
+
+    /**
+     * Whether the simulation should be stopped after the day of {@code report}.
+     */
+    boolean shouldStop(EpisimReporting.InfectionReport report);
+
+    /**
+     * Stops when nobody is infected or contagious anymore, so that no further infections can occur.
+     */
+    static StoppingCriterion extinction() {
+        return new StoppingCriterion() {
+            @Override
+            public boolean shouldStop(EpisimReporting.InfectionReport report) {
+                // initial infections are set on the first day
+                return report.day > 0 && report.nInfectedButNotContagious + report.nContagious == 0;
+            }
+
+            @Override
+            public String toString() {
+                return "extinction";
+            }
+        };
+    }
+
+    /**
+     * Stops when the cumulative number of infections exceeds {@code bound}.
+     */
+    static StoppingCriterion divergence(long bound) {
+        return new StoppingCriterion() {
+            @Override
+            public boolean shouldStop(EpisimReporting.InfectionReport report) {
+                return report.nTotalInfected + report.nRecovered > bound;
+            }
+
+            @Override
+            public String toString() {
+                return "more than " + bound + " infections";
+            }
+        };
+    }
+
+    /**
+     * Stops when the cumulative number of infections deviates from a target curve by more than {@code tolerance} relative to the target.
+     * Days without a target value are not checked.
+     *
+     * @param target    cumulative infections by day, see {@link #readTarget(Path)}
+     * @param tolerance allowed relative deviation, e.g. 0.5 for 50%
+     */
+    static StoppingCriterion targetCurve(Map<Long, Long> target, double tolerance) {
+        return new StoppingCriterion() {
+            @Override
+            public boolean shouldStop(EpisimReporting.InfectionReport report) {
+                Long expected = target.get(report.day);
+                if (expected == null)
+                    return false;
+
+                return Math.abs(report.nTotalInfected + report.nRecovered - expected) > tolerance * expected;
+            }
+
+            @Override
+            public String toString() {
+                return "deviation of more than " + tolerance + " from target";
+            }
+        };
+    }
+
+    /**
+     * Reads the cumulative infections by day from the {@code infections.txt} of a reference run.
+     */
+    static Map<Long, Long> readTarget(Path infections) throws IOException {
+        List<String> lines = Files.readAllLines(infections);
+        List<String> header = Arrays.asList(lines.get(0).split("\t"));
+        int day = header.indexOf(EpisimReporting.InfectionsWriterFields.day.name());
+        int cumulative = header.indexOf(EpisimReporting.InfectionsWriterFields.nInfectedCumulative.name());
+
+        Map<Long, Long> target = new TreeMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] row = line.split("\t");
+            target.put(Long.parseLong(row[day]), Long.parseLong(row[cumulative]));
+        }
+
+        return target;
+    }
+}
@@ -0,0 +1,55 @@
+package org.matsim.episim;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Immutable sequence of the activity types of a person during one day.
+ * Activity types are stored by their index in the {@link EventStore}, persons with the same sequence share one instance.
+ */
+final class Trajectory extends AbstractList<String> implements RandomAccess {
+
+    private final int[] activityTypes;
+    /**
+     * Names of all activity types, shared by all trajectories of one store.
+     */
+    private final String[] names;
+    private final int hash;
+
+    Trajectory(int[] activityTypes, String[] names) {
+        this.activityTypes = activityTypes;
+        this.names = names;
+        this.hash = super.hashCode();
+    }
+
+    @Override
+    public String get(int index) {
+        return names[activityTypes[index]];
+    }
+
+    /**
+     * Index of the activity type at {@code index} in the {@link EventStore}.
+     */
+    int getActivityType(int index) {
+        return activityTypes[index];
+    }
+
+    @Override
+    public int size() {
+        return activityTypes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof Trajectory && ((Trajectory) o).names == names)
+            return Arrays.equals(activityTypes, ((Trajectory) o).activityTypes);
+
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
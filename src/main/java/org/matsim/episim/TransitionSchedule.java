@@ -0,0 +1,82 @@
+package org.matsim.episim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Timer wheel of persons with pending state transitions, indexed by day.
+ * Each person is scheduled at most once, scheduling it again replaces the previous day.
+ * Days further ahead than the number of slots stay in their slot until their day has come.
+ */
+final class TransitionSchedule {
+
+    /**
+     * Number of slots, needs to be a power of two.
+     */
+    private static final int SLOTS = 32;
+
+    private final List<List<EpisimPerson>> slots = new ArrayList<>();
+
+    /**
+     * Scheduled day for each person by index, -1 if not scheduled.
+     */
+    private int[] scheduled = new int[0];
+
+    TransitionSchedule() {
+        for (int i = 0; i < SLOTS; i++)
+            slots.add(new ArrayList<>());
+    }
+
+    /**
+     * Schedules a person at {@code day}, or removes it from the schedule if day is negative.
+     */
+    void schedule(EpisimPerson person, int day) {
+        int index = person.getIndex();
+        if (index >= scheduled.length) {
+            int size = scheduled.length;
+            scheduled = Arrays.copyOf(scheduled, Math.max(index + 1, size * 2));
+            Arrays.fill(scheduled, size, scheduled.length, -1);
+        }
+
+        if (scheduled[index] == day)
+            return;
+
+        // entries at other days are left in their slot and skipped later
+        scheduled[index] = day;
+        if (day >= 0)
+            slots.get(day & (SLOTS - 1)).add(person);
+    }
+
+    /**
+     * Day the person is scheduled at, or -1 if it is not scheduled.
+     */
+    int getScheduled(EpisimPerson person) {
+        return person.getIndex() < scheduled.length ? scheduled[person.getIndex()] : -1;
+    }
+
+    /**
+     * Removes and returns all persons scheduled at {@code day}, ordered by their index.
+     */
+    List<EpisimPerson> poll(int day) {
+        List<EpisimPerson> slot = slots.get(day & (SLOTS - 1));
+        List<EpisimPerson> due = new ArrayList<>();
+
+        int n = 0;
+        for (EpisimPerson person : slot) {
+            int d = scheduled[person.getIndex()];
+            if (d == day) {
+                due.add(person);
+                scheduled[person.getIndex()] = -1;
+            } else if (d > day && (d & (SLOTS - 1)) == (day & (SLOTS - 1))) {
+                // scheduled a full turn of the wheel later
+                slot.set(n++, person);
+            }
+        }
+
+        slot.subList(n, slot.size()).clear();
+        due.sort(Comparator.comparingInt(EpisimPerson::getIndex));
+        return due;
+    }
+}
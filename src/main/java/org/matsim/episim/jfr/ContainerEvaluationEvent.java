@@ -0,0 +1,39 @@
+package org.matsim.episim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evaluation of the contacts of a person leaving a container, see {@link org.matsim.episim.model.InfectionModel}.
+ * Disabled by default, because it is emitted for every leaving person. Enable it with a threshold to find slow containers.
+ */
+@Name("org.matsim.episim.ContainerEvaluation")
+@Label("Container Evaluation")
+@Category("Episim")
+@Description("Contacts drawn when a person leaves a facility or vehicle")
+@Enabled(false)
+@StackTrace(false)
+public final class ContainerEvaluationEvent extends Event {
+
+    @Label("Day")
+    public int day;
+
+    @Label("Container")
+    public String container;
+
+    @Label("Vehicle")
+    @Description("Whether the container is a vehicle or a facility")
+    public boolean vehicle;
+
+    @Label("Occupants")
+    public int occupants;
+
+    @Label("Contacts")
+    @Description("Number of contacts drawn")
+    public int contacts;
+}
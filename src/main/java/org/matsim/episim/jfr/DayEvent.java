@@ -0,0 +1,33 @@
+package org.matsim.episim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Transition to the next day at the beginning of {@link org.matsim.episim.InfectionEventHandler#reset(int)},
+ * which covers the progression of the disease, the report and the policy update.
+ */
+@Name("org.matsim.episim.Day")
+@Label("Day")
+@Category("Episim")
+@Description("Transition to the next simulated day")
+@StackTrace(false)
+public final class DayEvent extends Event {
+
+    @Label("Day")
+    public int day;
+
+    @Label("Transitions")
+    @Description("Number of persons whose disease state has been updated")
+    public int transitions;
+
+    @Label("Infected")
+    public long infected;
+
+    @Label("Contagious")
+    public long contagious;
+}
@@ -0,0 +1,25 @@
+package org.matsim.episim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Writing of the daily infection report. Files are written in the background, so this only covers formatting and queueing the output.
+ */
+@Name("org.matsim.episim.Report")
+@Label("Report")
+@Category("Episim")
+@Description("Infection report of a day written to infections.txt")
+@StackTrace(false)
+public final class ReportEvent extends Event {
+
+    @Label("Day")
+    public int day;
+
+    @Label("Infected")
+    public long infected;
+}
@@ -7,6 +7,8 @@ import org.matsim.episim.*;
 import org.matsim.episim.policy.ShutdownPolicy;
 import org.matsim.vis.snapshotwriters.AgentSnapshotInfo;
 
+import javax.annotation.Nullable;
+
 import java.util.Map;
 import java.util.Random;
 
@@ -19,13 +21,25 @@ public abstract class AbstractInfectionModel implements InfectionModel {
     protected final Scenario scenario = null;
     protected final Random rnd;
     protected final EpisimConfigGroup episimConfig;
+    protected final InfectionParamsTable paramsTable;
     private final EpisimReporting reporting;
     protected int iteration;
     private Map<String, ShutdownPolicy.Restriction> restrictions;
 
+    /**
+     * If set, changes of persons are collected here instead of being applied directly.
+     */
+    protected DeferredEffects deferredEffects;
+
+    /**
+     * Number of contacts drawn so far.
+     */
+    protected long contacts;
+
     AbstractInfectionModel( Random rnd, EpisimConfigGroup episimConfig, EpisimReporting reporting ) {
         this.rnd = rnd;
         this.episimConfig = episimConfig;
+        this.paramsTable = new InfectionParamsTable(episimConfig);
         this.reporting = reporting;
     }
 
@@ -39,11 +53,43 @@ public abstract class AbstractInfectionModel implements InfectionModel {
         this.restrictions = restrictions;
     }
 
+    /**
+     * Number of contacts that have been evaluated by this model so far.
+     */
+    public final long getContacts() {
+        return contacts;
+    }
+
+    /**
+     * Collect all changes of persons in {@code effects} instead of applying them, so that they do not depend on the order of the containers.
+     * Set to null to apply changes directly again.
+     */
+    public final void setDeferredEffects(@Nullable DeferredEffects effects) {
+        this.deferredEffects = effects;
+    }
+
     /**
      * Sets the infection status of a person and reports the event.
      */
     void infectPerson( EpisimPerson personWrapper, EpisimPerson infector, double now, String infectionType ) {
 
+        if (deferredEffects != null) {
+            deferredEffects.addInfection(personWrapper, infector, now, infectionType);
+            return;
+        }
+
+        if (!personWrapper.getCurrentContainer().equals(infector.getCurrentContainer())) {
+            throw new IllegalStateException("Person and infector are not in same container!");
+        }
+
+        applyInfection(personWrapper, infector, now, infectionType);
+    }
+
+    /**
+     * Infects a person, without checking whether both persons are in the same container.
+     */
+    void applyInfection( EpisimPerson personWrapper, EpisimPerson infector, double now, String infectionType ) {
+
         if (personWrapper.getDiseaseStatus() != EpisimPerson.DiseaseStatus.susceptible) {
             throw new IllegalStateException("Person to be infected is not susceptible. Status is=" + personWrapper.getDiseaseStatus());
         }
@@ -56,10 +102,6 @@ public abstract class AbstractInfectionModel implements InfectionModel {
         if (infector.getQuarantineStatus() != EpisimPerson.QuarantineStatus.no) {
             throw new IllegalStateException("Infector is in quarantine.");
         }
-        if (!personWrapper.getCurrentContainer().equals(infector.getCurrentContainer())) {
-            throw new IllegalStateException("Person and infector are not in same container!");
-        }
-
         personWrapper.setDiseaseStatus(now, EpisimPerson.DiseaseStatus.infectedButNotContagious);
 
         // TODO: Currently not in use, is it still needed?
@@ -79,43 +121,41 @@ public abstract class AbstractInfectionModel implements InfectionModel {
         return restrictions;
     }
 
-    private static boolean activityRelevantForInfectionDynamics( EpisimPerson person, EpisimConfigGroup episimConfig,
+    private static boolean activityRelevantForInfectionDynamics( EpisimPerson person, int position, InfectionParamsTable paramsTable,
                                                                  Map<String, ShutdownPolicy.Restriction> restrictions, Random rnd ) {
-        String act = person.getTrajectory().get(person.getCurrentPositionInTrajectory());
-        return actIsRelevant(act, episimConfig, restrictions, rnd );
+        String act = person.getTrajectory().get(position);
+        return actIsRelevant(act, paramsTable, restrictions, rnd );
     }
 
-    private static boolean actIsRelevant( String act, EpisimConfigGroup episimConfig,
+    private static boolean actIsRelevant( String act, InfectionParamsTable paramsTable,
                                           Map<String, ShutdownPolicy.Restriction> restrictions, Random rnd ) {
-        for (EpisimConfigGroup.InfectionParams infectionParams : episimConfig.getContainerParams().values()) {
-            if (infectionParams.includesActivity(act)) {
-                ShutdownPolicy.Restriction r = restrictions.get(infectionParams.getContainerName());
-                // avoid use of rnd if outcome is known beforehand
-                if (r.getRemainingFraction() == 1)
-                    return true;
-                if (r.getRemainingFraction() == 0)
-                    return false;
-
-                return rnd.nextDouble() < r.getRemainingFraction();
-            }
-        }
+        InfectionParamsTable.Entry entry = paramsTable.get(act);
+        if (entry.getParamsIndex() < 0)
+            throw new IllegalStateException(String.format("No restrictions known for activity %s. Please add prefix to one infection parameter.", act));
+
+        ShutdownPolicy.Restriction r = restrictions.get(entry.getContainerName());
+        // avoid use of rnd if outcome is known beforehand
+        if (r.getRemainingFraction() == 1)
+            return true;
+        if (r.getRemainingFraction() == 0)
+            return false;
 
-        throw new IllegalStateException(String.format("No restrictions known for activity %s. Please add prefix to one infection parameter.", act));
+        return rnd.nextDouble() < r.getRemainingFraction();
     }
 
-    private static boolean tripRelevantForInfectionDynamics( EpisimPerson person, EpisimConfigGroup episimConfig,
+    private static boolean tripRelevantForInfectionDynamics( EpisimPerson person, int position, InfectionParamsTable paramsTable,
                                                              Map<String, ShutdownPolicy.Restriction> restrictions, Random rnd ) {
         String lastAct = "";
-        if (person.getCurrentPositionInTrajectory() != 0) {
-            lastAct = person.getTrajectory().get(person.getCurrentPositionInTrajectory() - 1);
+        if (position != 0) {
+            lastAct = person.getTrajectory().get(position - 1);
         }
 
-        String nextAct = person.getTrajectory().get(person.getCurrentPositionInTrajectory());
+        String nextAct = person.getTrajectory().get(position);
 
         // TODO: tr is a hardcoded activity for "pt"
         // last activity is only considered if present
-        return actIsRelevant("tr", episimConfig, restrictions, rnd ) && actIsRelevant(nextAct, episimConfig, restrictions,
-                        rnd ) && (lastAct.isEmpty() || actIsRelevant(lastAct, episimConfig,
+        return actIsRelevant("tr", paramsTable, restrictions, rnd ) && actIsRelevant(nextAct, paramsTable, restrictions,
+                        rnd ) && (lastAct.isEmpty() || actIsRelevant(lastAct, paramsTable,
                         restrictions, rnd ));
 
     }
@@ -123,9 +163,10 @@ public abstract class AbstractInfectionModel implements InfectionModel {
     /**
      * Checks whether person is relevant for tracking or for infection dynamics.  Currently, "relevant for infection dynamics" is a subset of "relevant for
      * tracking".  However, I am not sure if this will always be the case.  kai, apr'20
+     * @param position current position of the person in its trajectory
      * @noinspection BooleanMethodIsAlwaysInverted
      */
-    static boolean personRelevantForTrackingOrInfectionDynamics( EpisimPerson person, EpisimContainer<?> container, EpisimConfigGroup episimConfig,
+    static boolean personRelevantForTrackingOrInfectionDynamics( EpisimPerson person, int position, EpisimContainer<?> container, InfectionParamsTable paramsTable,
                                                                  Map<String, ShutdownPolicy.Restriction> restrictions, Random rnd ) {
 
         // Infected but not contagious persons are considered additionally
@@ -137,10 +178,10 @@ public abstract class AbstractInfectionModel implements InfectionModel {
             return false;
         }
 
-        if (container instanceof InfectionEventHandler.EpisimFacility && activityRelevantForInfectionDynamics(person, episimConfig, restrictions, rnd )) {
+        if (container instanceof InfectionEventHandler.EpisimFacility && activityRelevantForInfectionDynamics(person, position, paramsTable, restrictions, rnd )) {
             return true;
         }
-        if (container instanceof InfectionEventHandler.EpisimVehicle && tripRelevantForInfectionDynamics(person, episimConfig, restrictions, rnd )) {
+        if (container instanceof InfectionEventHandler.EpisimVehicle && tripRelevantForInfectionDynamics(person, position, paramsTable, restrictions, rnd )) {
             return true;
         }
         return false;
@@ -3,8 +3,9 @@ package org.matsim.episim.model;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.episim.*;
+import org.matsim.episim.jfr.ContainerEvaluationEvent;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import static org.matsim.episim.EpisimPerson.*;
@@ -24,6 +25,11 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
      */
     private final boolean trackingEnabled;
 
+    /**
+     * Occupant positions already drawn for the current contact sampling, sorted ascending. Reused between calls.
+     */
+    private int[] drawn = new int[16];
+
     public DefaultInfectionModel(Random rnd, EpisimConfigGroup episimConfig, EpisimReporting reporting, boolean trackingEnabled) {
         super(rnd, episimConfig, reporting);
         this.trackingEnabled = trackingEnabled;
@@ -31,15 +37,41 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
 
     @Override
     public void infectionDynamicsVehicle(EpisimPerson personLeavingVehicle, InfectionEventHandler.EpisimVehicle vehicle, double now) {
-        infectionDynamicsGeneralized(personLeavingVehicle, vehicle, now);
+        infectionDynamicsGeneralized(personLeavingVehicle, vehicle.getPersons().indexOf(personLeavingVehicle), vehicle, now);
     }
 
     @Override
     public void infectionDynamicsFacility(EpisimPerson personLeavingFacility, InfectionEventHandler.EpisimFacility facility, double now, String actType) {
-        infectionDynamicsGeneralized(personLeavingFacility, facility, now);
+        infectionDynamicsGeneralized(personLeavingFacility, facility.getPersons().indexOf(personLeavingFacility), facility, now);
+    }
+
+    @Override
+    public void infectionDynamicsContainer(EpisimContainer<?> container, int pos, double now) {
+        infectionDynamicsGeneralized(container.getPersons().get(pos), pos, container, now);
+    }
+
+    /**
+     * @param leavingPosition position of the leaving person in the container, -1 if it is not contained
+     */
+    private void infectionDynamicsGeneralized(EpisimPerson personLeavingContainer, int leavingPosition, EpisimContainer<?> container, double now) {
+        ContainerEvaluationEvent event = new ContainerEvaluationEvent();
+        event.begin();
+        long before = contacts;
+        int occupants = container.getPersons().size();
+
+        evaluateContacts(personLeavingContainer, leavingPosition, container, now);
+
+        if (event.shouldCommit()) {
+            event.day = iteration;
+            event.container = container.getContainerId().toString();
+            event.vehicle = container instanceof InfectionEventHandler.EpisimVehicle;
+            event.occupants = occupants;
+            event.contacts = (int) (contacts - before);
+            event.commit();
+        }
     }
 
-    private void infectionDynamicsGeneralized(EpisimPerson personLeavingContainer, EpisimContainer<?> container, double now) {
+    private void evaluateContacts(EpisimPerson personLeavingContainer, int leavingPosition, EpisimContainer<?> container, double now) {
         // yyyy Why is infectionSituaiton needed.  If we have the container, then we have the situation, don't we? kai, apr'20
 
 
@@ -52,18 +84,32 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
 //        else if (!trackingEnabled && !personRelevantForInfectionDynamics(personLeavingContainer, container, episimConfig, getRestrictions(), rnd ))
 //            return;
 
-        if ( !personRelevantForTrackingOrInfectionDynamics( personLeavingContainer, container, episimConfig, getRestrictions(), rnd ) ) {
+        // the current activity is taken from the container, as it was when the person entered it
+        int leavingTrajectoryPosition = leavingPosition >= 0 ? container.getTrajectoryPosition(leavingPosition) :
+                personLeavingContainer.getCurrentPositionInTrajectory();
+
+        if ( !personRelevantForTrackingOrInfectionDynamics( personLeavingContainer, leavingTrajectoryPosition, container, paramsTable, getRestrictions(), rnd ) ) {
             return;
         }
 
-        ArrayList<EpisimPerson> otherPersonsInContainer = new ArrayList<>(container.getPersons());
-        otherPersonsInContainer.remove(personLeavingContainer);
+        // contacts are drawn directly from the occupants, the leaving person is treated as already drawn
+        List<EpisimPerson> personsInContainer = container.getPersons();
+        int nDrawn = leavingPosition >= 0 ? 1 : 0;
+        int otherPersonsInContainer = personsInContainer.size() - nDrawn;
 
         // For the time being, will just assume that the first 10 persons are the ones we interact with.  Note that because of
         // shuffle, those are 10 different persons every day.
 
         // persons are scaled to number of agents with sample size, but at least 3 for the small development scenarios
-        int contactWith = Math.min(otherPersonsInContainer.size(), Math.max((int) (episimConfig.getSampleSize() * 10), 3));
+        int contactWith = Math.min(otherPersonsInContainer, Math.max((int) (episimConfig.getSampleSize() * 10), 3));
+
+        // the buffer needs to be large enough before the leaving person is recorded
+        if (drawn.length < contactWith + nDrawn)
+            drawn = new int[contactWith + nDrawn];
+
+        if (leavingPosition >= 0)
+            drawn[0] = leavingPosition;
+
         for (int ii = 0; ii < contactWith; ii++) {
 
             // we are essentially looking at the situation when the person leaves the container.  Interactions with other persons who have
@@ -71,7 +117,10 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
             //  depend on the density), and then a probability of infection in either direction.
 
             // Draw the contact person and remove it -> we don't want to draw it multiple times
-            EpisimPerson contactPerson = otherPersonsInContainer.remove(rnd.nextInt(otherPersonsInContainer.size()));
+            int contactPosition = draw(otherPersonsInContainer - ii, nDrawn++);
+            contacts++;
+            EpisimPerson contactPerson = personsInContainer.get(contactPosition);
+            int contactTrajectoryPosition = container.getTrajectoryPosition(contactPosition);
 
             // If tracking is not enabled, the loop can continue earlier
 //            if (trackingEnabled && !personRelevantForTrackingOrInfectionDynamics(contactPerson, container, episimConfig, getRestrictions(), rnd )){
@@ -82,7 +131,7 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
 //                continue;
 //            }
 
-            if ( !personRelevantForTrackingOrInfectionDynamics( contactPerson, container, episimConfig, getRestrictions(), rnd ) ) {
+            if ( !personRelevantForTrackingOrInfectionDynamics( contactPerson, contactTrajectoryPosition, container, paramsTable, getRestrictions(), rnd ) ) {
                 continue;
             }
 
@@ -111,8 +160,8 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
             // If tracking is not enabled, we do not have to go into the for-loop for leaving persons with status infectedButNotContagious or do not have to perform
             // tracking inside the loop for contact persons with status infectedButNotContagious
 
-            String leavingPersonsActivity = personLeavingContainer.getTrajectory().get(personLeavingContainer.getCurrentPositionInTrajectory());
-            String otherPersonsActivity = contactPerson.getTrajectory().get(contactPerson.getCurrentPositionInTrajectory());
+            String leavingPersonsActivity = personLeavingContainer.getTrajectory().get(leavingTrajectoryPosition);
+            String otherPersonsActivity = contactPerson.getTrajectory().get(contactTrajectoryPosition);
 
             String infectionType = getInfectionType(container, leavingPersonsActivity, otherPersonsActivity);
 
@@ -134,24 +183,17 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
                 continue;
             }
 
-            Double containerEnterTimeOfPersonLeaving = container.getContainerEnteringTime(personLeavingContainer.getPersonId());
-            Double containerEnterTimeOfOtherPerson = container.getContainerEnteringTime(contactPerson.getPersonId());
+            double containerEnterTimeOfPersonLeaving = leavingPosition >= 0 ? container.getContainerEnteringTime(leavingPosition) : Double.NEGATIVE_INFINITY;
+            double containerEnterTimeOfOtherPerson = container.getContainerEnteringTime(contactPosition);
 
             // persons leaving their first-ever activity have no starting time for that activity.  Need to hedge against that.  Since all persons
             // start healthy (the first seeds are set at enterVehicle), we can make some assumptions.
-            if (containerEnterTimeOfPersonLeaving == null && containerEnterTimeOfOtherPerson == null) {
+            if (containerEnterTimeOfPersonLeaving == Double.NEGATIVE_INFINITY && containerEnterTimeOfOtherPerson == Double.NEGATIVE_INFINITY) {
                 throw new IllegalStateException("should not happen");
                 // null should only happen at first activity.  However, at first activity all persons are susceptible.  So the only way we
                 // can get here is if an infected person entered the container and is now leaving again, while the other person has been in the
                 // container from the beginning.  ????  kai, mar'20
             }
-            if (containerEnterTimeOfPersonLeaving == null) {
-                containerEnterTimeOfPersonLeaving = Double.NEGATIVE_INFINITY;
-            }
-            if (containerEnterTimeOfOtherPerson == null) {
-                containerEnterTimeOfOtherPerson = Double.NEGATIVE_INFINITY;
-            }
-
             double jointTimeInContainer = now - Math.max(containerEnterTimeOfPersonLeaving, containerEnterTimeOfOtherPerson);
             if (jointTimeInContainer < 0 || jointTimeInContainer > 86400) {
                 log.warn(containerEnterTimeOfPersonLeaving);
@@ -180,6 +222,27 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
         }
     }
 
+    /**
+     * Draws a random position among the occupants that have not been drawn yet and marks it as drawn.
+     * This selects the same persons as removing random elements from a copy of the occupant list, without copying it.
+     *
+     * @param remaining number of occupants not drawn yet
+     * @param nDrawn    number of positions already drawn
+     */
+    private int draw(int remaining, int nDrawn) {
+        int pos = rnd.nextInt(remaining);
+
+        // skip all drawn positions in front of this one
+        int j = 0;
+        for (; j < nDrawn && drawn[j] <= pos; j++) {
+            pos++;
+        }
+
+        System.arraycopy(drawn, j, drawn, j + 1, nDrawn - j);
+        drawn[j] = pos;
+        return pos;
+    }
+
     private String getInfectionType(EpisimContainer<?> container, String leavingPersonsActivity, String otherPersonsActivity) {
         String infectionType;
         if (container instanceof InfectionEventHandler.EpisimFacility) {
@@ -200,25 +263,13 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
         if (container instanceof InfectionEventHandler.EpisimVehicle) {
             String containerIdString = container.getContainerId().toString();
 
-            for (EpisimConfigGroup.InfectionParams infectionParams : episimConfig.getContainerParams().values()) {
-                if (infectionParams.includesActivity(containerIdString)) {
-                    contactIntensity = infectionParams.getContactIntensity();
-                }
-            }
+            contactIntensity = paramsTable.get(containerIdString).getContactIntensity();
             if (contactIntensity < 0.) {
                 throw new IllegalStateException("contactIntensity not defined for vehicle container=" + containerIdString + ".  There needs to be a config entry for each activity type.");
             }
         } else if (container instanceof InfectionEventHandler.EpisimFacility){
-            double contactIntensityLeavingPerson = -1;
-            double contactIntensityOtherPerson = -1;
-            for (EpisimConfigGroup.InfectionParams infectionParams : episimConfig.getContainerParams().values()) {
-                if (infectionParams.includesActivity(leavingPersonsActivity)) {
-                    contactIntensityLeavingPerson = infectionParams.getContactIntensity();
-                }
-                if (infectionParams.includesActivity(otherPersonsActivity)) {
-                    contactIntensityOtherPerson = infectionParams.getContactIntensity();
-                }
-            }
+            double contactIntensityLeavingPerson = paramsTable.get(leavingPersonsActivity).getContactIntensity();
+            double contactIntensityOtherPerson = paramsTable.get(otherPersonsActivity).getContactIntensity();
             if (contactIntensityLeavingPerson < 0. || contactIntensityOtherPerson < 0.) {
                 throw new IllegalStateException("contactIntensity not defined either for activityType=" + contactIntensityLeavingPerson + " or for activityType= " + otherPersonsActivity
                         + ".  There needs to be a config entry for each activity type.");
@@ -233,12 +284,12 @@ public final class DefaultInfectionModel extends AbstractInfectionModel {
 
     private void trackContactPerson(EpisimPerson personLeavingContainer, EpisimPerson otherPerson, String leavingPersonsActivity) {
         if (leavingPersonsActivity.contains("home") || leavingPersonsActivity.contains("work") || (leavingPersonsActivity.contains("leisure") && rnd.nextDouble() < 0.8)) {
-            if (!personLeavingContainer.getTraceableContactPersons().contains(otherPerson)) { //if condition should not be necessary as it is a set
-                personLeavingContainer.addTraceableContactPerson(otherPerson);
-            }
-            if (!otherPerson.getTraceableContactPersons().contains(personLeavingContainer)) { //if condition should not be necessary as it is a set
-                otherPerson.addTraceableContactPerson(personLeavingContainer);
+            if (deferredEffects != null) {
+                deferredEffects.addContact(personLeavingContainer, otherPerson);
+                return;
             }
+
+            personLeavingContainer.addTraceableContactPerson(otherPerson, iteration);
         }
     }
 
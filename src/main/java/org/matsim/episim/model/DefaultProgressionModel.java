@@ -46,7 +46,7 @@ public final class DefaultProgressionModel implements ProgressionModel {
                         // yyyy this should become "home"!  kai, mar'20
 
                         if (episimConfig.getPutTracablePersonsInQuarantine() == EpisimConfigGroup.PutTracablePersonsInQuarantine.yes) {
-                            for (EpisimPerson pw : person.getTraceableContactPersons()) {
+                            for (EpisimPerson pw : person.getTraceableContactPersons(day - episimConfig.getTracingDays(), day - 1)) {
                                 if (pw.getQuarantineStatus() == EpisimPerson.QuarantineStatus.no) { //what if tracked person has recovered
 
                                     pw.setQuarantineStatus(EpisimPerson.QuarantineStatus.full);
@@ -97,7 +97,54 @@ public final class DefaultProgressionModel implements ProgressionModel {
         if (person.getQuarantineStatus() == EpisimPerson.QuarantineStatus.full && person.daysSinceQuarantine(day) >= 14) {
             person.setQuarantineStatus(EpisimPerson.QuarantineStatus.no);
         }
-        person.getTraceableContactPersons().clear(); //so we can only track contact persons over 1 day
+        // contact persons are only tracked over the last days, see EpisimConfigGroup#getTracingDays
+    }
+
+    @Override
+    public int nextTransitionDay(EpisimPerson person, int day) {
+        int next = -1;
+        switch (person.getDiseaseStatus()) {
+            case susceptible:
+            case recovered:
+                break;
+            case infectedButNotContagious:
+                next = nextDay(person, day, 4);
+                break;
+            case contagious:
+                next = nextDay(person, day, 6, 10, 16);
+                break;
+            case seriouslySick:
+                next = nextDay(person, day, 11, 23);
+                break;
+            case critical:
+                // stays critical if day 20 has passed
+                if (person.daysSinceInfection(day) <= 20)
+                    next = day + 20 - person.daysSinceInfection(day);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value: " + person.getDiseaseStatus());
+        }
+
+        if (person.getQuarantineStatus() == EpisimPerson.QuarantineStatus.full) {
+            int release = day + Math.max(0, 14 - person.daysSinceQuarantine(day));
+            next = next < 0 ? release : Math.min(next, release);
+        }
+
+        return next;
+    }
+
+    /**
+     * First day, not before {@code day}, that is one of the given days since infection.
+     * The last transition is checked with "at least", i.e. it is due every day after it has been reached.
+     */
+    private static int nextDay(EpisimPerson person, int day, int... daysSinceInfection) {
+        int current = person.daysSinceInfection(day);
+        for (int d : daysSinceInfection) {
+            if (d >= current)
+                return day + d - current;
+        }
+
+        return day;
     }
 
 
@@ -0,0 +1,105 @@
+package org.matsim.episim.model;
+
+import org.matsim.episim.EpisimPerson;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Infections and traced contacts of persons that are collected while a day is simulated.
+ * Persons are not modified during the day, instead all effects are applied at the end of the day by {@link #apply(List, AbstractInfectionModel)}.
+ * Every effect remembers the event it was caused by, see {@link #setEvent(int)}, and effects are applied in the order of the events.
+ * This way the result does not depend on the order in which containers are processed and is the same as handling the events one by one.
+ */
+public final class DeferredEffects {
+
+    private final List<Infection> infections = new ArrayList<>();
+
+    private final List<Contact> contacts = new ArrayList<>();
+
+    /**
+     * Index of the event currently handled.
+     */
+    private int event;
+
+    /**
+     * Sets the index of the event whose effects are added next.
+     */
+    public void setEvent(int event) {
+        this.event = event;
+    }
+
+    void addInfection(EpisimPerson person, EpisimPerson infector, double now, String infectionType) {
+        infections.add(new Infection(person, infector, now, infectionType, event));
+    }
+
+    void addContact(EpisimPerson person, EpisimPerson other) {
+        contacts.add(new Contact(person, other, event));
+    }
+
+    public void clear() {
+        infections.clear();
+        contacts.clear();
+    }
+
+    /**
+     * Applies all collected effects in deterministic order, i.e. contacts are ordered by event and infections by time, person and event.
+     * A person infected multiple times is only infected by the earliest infection.
+     *
+     * @param model model used to apply the infections, must not defer effects itself
+     */
+    public static void apply(List<DeferredEffects> effects, AbstractInfectionModel model) {
+
+        List<Infection> infections = new ArrayList<>();
+        List<Contact> contacts = new ArrayList<>();
+        for (DeferredEffects e : effects) {
+            infections.addAll(e.infections);
+            contacts.addAll(e.contacts);
+        }
+
+        // sort is stable, contacts of the same event keep the order in which they were traced
+        // the order matters, when the contact log is full and drops contacts
+        contacts.sort(Comparator.comparingInt(c -> c.event));
+        for (Contact c : contacts)
+            c.person.addTraceableContactPerson(c.other, model.iteration);
+
+        // a person can be infected at the same time in two containers, when leaving one and entering the next
+        infections.sort(Comparator.<Infection>comparingDouble(inf -> inf.time)
+                .thenComparing(inf -> inf.person.getPersonId())
+                .thenComparingInt(inf -> inf.event));
+
+        for (Infection inf : infections) {
+            if (inf.person.getDiseaseStatus() == EpisimPerson.DiseaseStatus.susceptible)
+                model.applyInfection(inf.person, inf.infector, inf.time, inf.infectionType);
+        }
+    }
+
+    private static final class Infection {
+        private final EpisimPerson person;
+        private final EpisimPerson infector;
+        private final double time;
+        private final String infectionType;
+        private final int event;
+
+        private Infection(EpisimPerson person, EpisimPerson infector, double time, String infectionType, int event) {
+            this.person = person;
+            this.infector = infector;
+            this.time = time;
+            this.infectionType = infectionType;
+            this.event = event;
+        }
+    }
+
+    private static final class Contact {
+        private final EpisimPerson person;
+        private final EpisimPerson other;
+        private final int event;
+
+        private Contact(EpisimPerson person, EpisimPerson other, int event) {
+            this.person = person;
+            this.other = other;
+            this.event = event;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.matsim.episim.model;
 
+import org.matsim.episim.EpisimContainer;
 import org.matsim.episim.EpisimPerson;
 import org.matsim.episim.InfectionEventHandler;
 import org.matsim.episim.policy.ShutdownPolicy;
@@ -21,6 +22,13 @@ public interface InfectionModel {
      */
     void infectionDynamicsFacility(EpisimPerson personLeavingFacility, InfectionEventHandler.EpisimFacility facility, double now, String actType);
 
+    /**
+     * This method is called when the person at position {@code pos} of {@code container} leaves it at {@code now}.
+     * Unlike the methods above, it does not rely on the current container of the person, which is not known when containers are
+     * simulated in parallel.
+     */
+    void infectionDynamicsContainer(EpisimContainer<?> container, int pos, double now);
+
     /**
      * Set the current iteration and restrictions in place.
      */
@@ -11,9 +11,20 @@ public interface ProgressionModel {
 
     /**
      * Called at the start of the day to update the state of a person.
+     * Only called at days returned by {@link #nextTransitionDay(EpisimPerson, int)}.
      */
     void updateState(EpisimPerson person, int day);
 
+    /**
+     * Returns the next day, not before {@code day}, at which {@link #updateState(EpisimPerson, int)} may change the person.
+     * This is evaluated again whenever the person changes. By default persons are updated every day.
+     *
+     * @return day of the next update, or -1 if the person will not change anymore by itself
+     */
+    default int nextTransitionDay(EpisimPerson person, int day) {
+        return day;
+    }
+
     /**
      * Checks whether any state transitions are possible. Otherwise the simulation will end.
      */
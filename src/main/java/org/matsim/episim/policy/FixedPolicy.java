@@ -4,8 +4,11 @@ import com.google.common.collect.ImmutableMap;
 import com.typesafe.config.Config;
 import org.matsim.episim.EpisimReporting;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Set the restrictions based on fixed rules with day and {@link Restriction#getRemainingFraction()}.
@@ -23,6 +26,43 @@ public class FixedPolicy extends ShutdownPolicy {
         return new ConfigBuilder();
     }
 
+    /**
+     * First day at which two configs of fixed policies restrict an activity differently.
+     *
+     * @return {@link Long#MAX_VALUE} if the restrictions are the same on all days
+     */
+    public static long firstDifference(Config a, Config b) {
+        Map<String, Object> restrictionsA = a.root().unwrapped();
+        Map<String, Object> restrictionsB = b.root().unwrapped();
+
+        Set<String> activities = new HashSet<>(restrictionsA.keySet());
+        activities.addAll(restrictionsB.keySet());
+
+        long first = Long.MAX_VALUE;
+        for (String act : activities) {
+            Map<String, Object> daysA = getDays(restrictionsA, act);
+            Map<String, Object> daysB = getDays(restrictionsB, act);
+
+            Set<String> days = new HashSet<>(daysA.keySet());
+            days.addAll(daysB.keySet());
+
+            for (String day : days) {
+                Object fa = daysA.get(day);
+                Object fb = daysB.get(day);
+                if (fa == null || fb == null || ((Number) fa).doubleValue() != ((Number) fb).doubleValue())
+                    first = Math.min(first, Long.parseLong(day));
+            }
+        }
+
+        return first;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getDays(Map<String, Object> restrictions, String act) {
+        Object days = restrictions.get(act);
+        return days instanceof Map ? (Map<String, Object>) days : Collections.emptyMap();
+    }
+
     @Override
     public void updateRestrictions(EpisimReporting.InfectionReport report, ImmutableMap<String, Restriction> restrictions) {
         long day = report.day;
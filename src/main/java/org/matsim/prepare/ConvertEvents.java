@@ -0,0 +1,57 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.ReplayHandler;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+import static picocli.CommandLine.*;
+
+@Command(
+		name = "convertEvents",
+		description = "Parse event file once and write it to the binary events cache used by episim.",
+		mixinStandardHelpOptions = true
+)
+public class ConvertEvents implements Callable<Integer> {
+
+	private static Logger log = LogManager.getLogger(ConvertEvents.class);
+
+	@Parameters(paramLabel = "file", arity = "1", description = "Path to event file")
+	private Path input;
+
+	@Option(names = "--output", description = "Cache folder, by default the folder of the event file")
+	private Path output;
+
+	public static void main(String[] args) {
+		System.exit(new CommandLine(new ConvertEvents()).execute(args));
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		if (!Files.exists(input)) {
+			log.error("Input file {} does not exists", input);
+			return 2;
+		}
+
+		Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+
+		episimConfig.setInputEventsFile(input.toString());
+		if (output != null)
+			episimConfig.setEventsCacheFolder(output.toString());
+
+		Path cache = ReplayHandler.createCache(episimConfig);
+		log.info("Events cache written to {}", cache);
+
+		return 0;
+	}
+
+}
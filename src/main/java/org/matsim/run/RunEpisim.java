@@ -1,5 +1,7 @@
 package org.matsim.run;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
@@ -8,7 +10,6 @@ import org.matsim.core.config.groups.VspExperimentalConfigGroup;
 import org.matsim.core.controler.ControlerUtils;
 import org.matsim.core.controler.OutputDirectoryLogging;
 import org.matsim.core.events.EventsUtils;
-import org.matsim.core.events.algorithms.EventWriter;
 import org.matsim.core.events.algorithms.EventWriterXML;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.episim.EpisimConfigGroup;
@@ -17,17 +18,26 @@ import org.matsim.episim.EpisimConfigGroup.InfectionParams;
 import org.matsim.episim.EpisimPerson;
 import org.matsim.episim.InfectionEventHandler;
 import org.matsim.episim.ReplayHandler;
+import org.matsim.episim.Snapshot;
 import org.matsim.episim.events.EpisimPersonStatusEvent;
 import org.matsim.episim.policy.FixedPolicy;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiPredicate;
 
 public class RunEpisim {
 
+    private static final Logger log = LogManager.getLogger(RunEpisim.class);
+
     /**
      * Activity names of the default params from {@link #addDefaultParams(EpisimConfigGroup)}
      */
@@ -120,12 +130,116 @@ public class RunEpisim {
 
     /**
      * Main loop that performs the iterations of the simulation.
+     * If {@link EpisimConfigGroup#getStartFromSnapshot()} is set, the simulation continues with the day after the snapshot.
      *
      * @param config     fully initialized config file, {@link EpisimConfigGroup} needs to be present.
      * @param iterations ending iteration (inclusive)
      */
     public static void runSimulation(Config config, int iterations) throws IOException {
 
+        Scenario scenario = loadScenario(config);
+        EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+
+        Snapshot snapshot = null;
+        if (episimConfig.getStartFromSnapshot() != null)
+            snapshot = Snapshot.read(Paths.get(episimConfig.getStartFromSnapshot()));
+
+        try (ReplayHandler replay = new ReplayHandler(episimConfig, scenario)) {
+            simulate(config, scenario, replay, snapshot, iterations).close();
+        }
+
+        OutputDirectoryLogging.closeOutputDirLogging();
+    }
+
+    /**
+     * Simulates the days before {@code forkDay} once and continues each of the {@code variants} from there, instead of simulating
+     * the common days again for every variant. The variants share the events and population loaded for {@code config}
+     * and may only differ from it in their policy, output and number of threads.
+     * The policy needs to restrict activities the same way before {@code forkDay}.
+     * Output of the common days is copied into the output directory of each variant, results are the same as for separate runs.
+     *
+     * @param config     config of the common days, whose output directory receives their output
+     * @param variants   configs that are continued from the day before {@code forkDay}
+     * @param forkDay    first day on which the variants differ
+     * @param iterations ending iteration (inclusive)
+     */
+    public static void runForks(Config config, List<Config> variants, int forkDay, int iterations) throws IOException {
+
+        if (forkDay < 1)
+            throw new IllegalArgumentException("Variants can only be forked after the first day, but fork day was " + forkDay);
+
+        EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+        for (Config variant : variants)
+            checkVariant(episimConfig, ConfigUtils.addOrGetModule(variant, EpisimConfigGroup.class), forkDay);
+
+        Scenario scenario = loadScenario(config);
+
+        try (ReplayHandler replay = new ReplayHandler(episimConfig, scenario)) {
+            InfectionEventHandler common = simulate(config, scenario, replay, null, forkDay - 1);
+            Snapshot snapshot;
+            try {
+                snapshot = common.snapshot();
+            } finally {
+                common.close();
+            }
+
+            log.info("Forking {} variants from day {} ({} MB)", variants.size(), snapshot.getDay(), snapshot.size() / (1024 * 1024));
+
+            for (Config variant : variants) {
+                prepareConfig(variant);
+                simulate(variant, scenario, replay, snapshot, iterations).close();
+            }
+        }
+
+        OutputDirectoryLogging.closeOutputDirLogging();
+    }
+
+    /**
+     * Simulates several configs concurrently on {@code threads} threads, which all replay the same events.
+     * Events, pseudo facilities and the population are loaded once for {@code config} and shared read-only by all runs,
+     * so that memory grows with the state of persons and containers of each run, but not with the number of events.
+     * The runs may differ from {@code config} in every parameter except the events and facilities handling,
+     * each of them is simulated with a single thread, see {@link EpisimConfigGroup#getNumberOfThreads()}.
+     * Runs are started in the given order, {@link Sweep} also orders them by their estimated cost.
+     *
+     * @param config     config to load events and population
+     * @param runs       configs to simulate, with distinct output directories
+     * @param threads    number of runs simulated at the same time
+     * @param iterations ending iteration (inclusive)
+     */
+    public static void runBatch(Config config, List<Config> runs, int threads, int iterations) throws IOException {
+        new Sweep(config, runs, iterations)
+                .setThreads(threads)
+                .setProbeDays(0)
+                .run();
+    }
+
+    /**
+     * Checks that a variant only differs from the common config in its policy and output.
+     */
+    private static void checkVariant(EpisimConfigGroup config, EpisimConfigGroup variant, int forkDay) {
+        Set<String> ignored = Set.of("policyClass", "policyConfig", "outputEventsFolder", "snapshotInterval", "startFromSnapshot", "numberOfThreads");
+
+        for (Map.Entry<String, String> e : config.getParams().entrySet()) {
+            if (!ignored.contains(e.getKey()) && !Objects.equals(e.getValue(), variant.getParams().get(e.getKey())))
+                throw new IllegalArgumentException(String.format("Variant has different %s: %s instead of %s",
+                        e.getKey(), variant.getParams().get(e.getKey()), e.getValue()));
+        }
+
+        for (InfectionParams params : config.getContainerParams().values()) {
+            InfectionParams other = variant.getContainerParams().get(params.getContainerName());
+            if (other == null || !params.getParams().equals(other.getParams()))
+                throw new IllegalArgumentException("Variant has different infection params for " + params.getContainerName());
+        }
+
+        if (config.getPolicyClass().equals(FixedPolicy.class.getName()) && variant.getPolicyClass().equals(FixedPolicy.class.getName())) {
+            long day = FixedPolicy.firstDifference(config.getPolicy(), variant.getPolicy());
+            if (day < forkDay)
+                throw new IllegalArgumentException(String.format("Policy of variant differs at day %d, before fork day %d", day, forkDay));
+        }
+    }
+
+    static void prepareConfig(Config config) {
         config.vspExperimental().setVspDefaultsCheckingLevel(VspExperimentalConfigGroup.VspDefaultsCheckingLevel.warn);
 
         // save some time for not needed inputs
@@ -133,8 +247,26 @@ public class RunEpisim {
 //        config.plans().setInputFile(null);
         config.facilities().setInputFile(null);
         config.vehicles().setVehiclesFile(null);
+    }
+
+    static Scenario loadScenario(Config config) {
+        prepareConfig(config);
+        return ScenarioUtils.loadScenario(config);
+    }
 
-        Scenario scenario = ScenarioUtils.loadScenario(config);
+    private static InfectionEventHandler simulate(Config config, Scenario scenario, ReplayHandler replay,
+                                                  @Nullable Snapshot snapshot, int iterations) throws IOException {
+        return simulate(config, scenario, replay, snapshot, iterations, null);
+    }
+
+    /**
+     * Simulates the days after the snapshot, or from the first day if there is none.
+     *
+     * @param afterDay optional callback after the events of each day have been replayed, the simulation stops if it returns false
+     * @return handler of the simulation, which needs to be closed
+     */
+    static InfectionEventHandler simulate(Config config, Scenario scenario, ReplayHandler replay, @Nullable Snapshot snapshot,
+                                          int iterations, @Nullable BiPredicate<InfectionEventHandler, Integer> afterDay) throws IOException {
 
         Path out = Paths.get(config.controler().getOutputDirectory());
         if (!Files.exists(out))
@@ -150,41 +282,58 @@ public class RunEpisim {
         }
 
         EventsManager events = EventsUtils.createEventsManager();
-        InfectionEventHandler eventHandler = new InfectionEventHandler(config, scenario, events);
+        InfectionEventHandler eventHandler = new InfectionEventHandler(config, scenario, events, snapshot);
         events.addHandler(eventHandler);
 
-        ReplayHandler replay = new ReplayHandler(episimConfig, scenario);
-        ControlerUtils.checkConfigConsistencyAndWriteToLog(config, "Just before starting iterations");
+        // the handler owns a writer thread and open files, which would leak for every failed run of a batch
+        try {
+            eventHandler.init(replay);
+            ControlerUtils.checkConfigConsistencyAndWriteToLog(config, "Just before starting iterations");
 
-        for (int iteration = 0; iteration <= iterations; iteration++) {
+            int start = snapshot != null ? snapshot.getDay() + 1 : 0;
+            for (int iteration = start; iteration <= iterations; iteration++) {
 
-            EventWriter writer = null;
-            // Only write events if output was set
-            if (eventPath != null) {
-                writer = new EventWriterXML(eventPath.resolve(String.format("day_%03d.xml.gz", iteration)).toString());
-                events.addHandler(writer);
-            }
+                EventWriterXML writer = null;
+                // Only write events if output was set
+                if (eventPath != null) {
+                    writer = new EventWriterXML(eventPath.resolve(String.format("day_%03d.xml.gz", iteration)).toString());
+                    events.addHandler(writer);
+                }
 
-            events.resetHandlers(iteration);
-            if (eventHandler.isFinished())
-                break;
+                events.resetHandlers(iteration);
+                if (eventHandler.isFinished())
+                    break;
 
-            // report initial status:
-            if (iteration == 0) {
-                for (EpisimPerson person : eventHandler.getPersons()) {
-                    if (person.getDiseaseStatus() != EpisimPerson.DiseaseStatus.susceptible) {
-                        events.processEvent(new EpisimPersonStatusEvent(0., person.getPersonId(), person.getDiseaseStatus()));
+                // report initial status:
+                if (iteration == 0) {
+                    for (EpisimPerson person : eventHandler.getPersons()) {
+                        if (person.getDiseaseStatus() != EpisimPerson.DiseaseStatus.susceptible) {
+                            events.processEvent(new EpisimPersonStatusEvent(0., person.getPersonId(), person.getDiseaseStatus()));
+                        }
                     }
                 }
-            }
 
-            replay.replayEvents(events, iteration);
-            if (writer != null) {
-                events.removeHandler(writer);
-                writer.closeFile();
+                replay.replayEvents(eventHandler, writer, iteration);
+                if (writer != null) {
+                    events.removeHandler(writer);
+                    writer.closeFile();
+                }
+
+                if (episimConfig.getSnapshotInterval() > 0 && iteration > 0 && iteration % episimConfig.getSnapshotInterval() == 0)
+                    eventHandler.writeSnapshot(out.resolve(String.format("snapshot_%03d.episim", iteration)));
+
+                if (afterDay != null && !afterDay.test(eventHandler, iteration))
+                    break;
+            }
+        } catch (Throwable e) {
+            try {
+                eventHandler.close();
+            } catch (RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
             }
+            throw e;
         }
 
-        OutputDirectoryLogging.closeOutputDirLogging();
+        return eventHandler;
     }
 }
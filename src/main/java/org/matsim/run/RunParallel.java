@@ -32,96 +32,67 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
+ * Runs a grid of shutdown days, which all share the events loaded once, see {@link Sweep}.
+ *
  * @author smueller
  */
 public class RunParallel {
 
-    private static final int MYTHREADS = 4;
+    public static void main(String[] args) throws IOException {
 
-    public static void main(String[] args) {
+        OutputDirectoryLogging.catchLogEntries();
 
-        ExecutorService executor = Executors.newFixedThreadPool(MYTHREADS);
         List<Long> pt = Arrays.asList(1000L, 10L, 20L, 30L);
         List<Long> work = Arrays.asList(1000L, 10L, 20L, 30L);
         List<Long> leisure = Arrays.asList(1000L, 10L, 20L, 30L);
 
         List<Long> otherExceptHome = Arrays.asList(1000L, 10L, 20L, 30L);
 
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<Config> runs = new ArrayList<>();
 
         for (long p : pt) {
             for (long w : work) {
                 for (long l : leisure) {
                     for (long o : otherExceptHome) {
-                        futures.add(
-                                CompletableFuture.runAsync(new MyRunnable(p, w, l, o), executor)
-                        );
+                        runs.add(createConfig(p, w, l, o));
                     }
                 }
             }
         }
 
-        // Wait for all futures to complete
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        new Sweep(runs.get(0), runs, 100).run();
 
         System.out.println("\nFinished all threads");
-
-        executor.shutdown();
     }
 
-    public static class MyRunnable implements Runnable {
-        private final long p;
-        private final long w;
-        private final long l;
-        private final long o;
-
-        MyRunnable(long p, long w, long l, long o) {
-            this.p = p;
-            this.w = w;
-            this.l = l;
-            this.o = o;
-
-        }
-
-        @Override
-        public void run() {
-
-            OutputDirectoryLogging.catchLogEntries();
+    private static Config createConfig(long p, long w, long l, long o) {
 
-            Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
-            EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+        Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
+        EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
 
-            episimConfig.setInputEventsFile("../snzDrt220.0.events.reduced.xml.gz");
-            episimConfig.setFacilitiesHandling(FacilitiesHandling.snz);
+        episimConfig.setInputEventsFile("../snzDrt220.0.events.reduced.xml.gz");
+        episimConfig.setFacilitiesHandling(FacilitiesHandling.snz);
 
-            episimConfig.setSampleSize(0.25);
-            episimConfig.setCalibrationParameter(0.002);
+        episimConfig.setSampleSize(0.25);
+        episimConfig.setCalibrationParameter(0.002);
 
-            RunEpisim.addDefaultParams(episimConfig);
+        RunEpisim.addDefaultParams(episimConfig);
 
-            episimConfig.getOrAddContainerParams("pt")
-                    .setContactIntensity(10.0);
+        episimConfig.getOrAddContainerParams("pt")
+                .setContactIntensity(10.0);
 
-            episimConfig.setPolicyConfig(FixedPolicy.config()
-                    .shutdown(this.p, "pt")
-                    .shutdown(this.o, "business", "edu", "errands", "shopping")
-                    .shutdown(this.l, "leisure")
-                    .shutdown(this.w, "work")
-                    .build()
-            );
+        episimConfig.setPolicyConfig(FixedPolicy.config()
+                .shutdown(p, "pt")
+                .shutdown(o, "business", "edu", "errands", "shopping")
+                .shutdown(l, "leisure")
+                .shutdown(w, "work")
+                .build()
+        );
 
-            config.controler().setOutputDirectory("output/" + p + "-" + w + "-" + l + "-" + o);
+        config.controler().setOutputDirectory("output/" + p + "-" + w + "-" + l + "-" + o);
 
-            try {
-                RunEpisim.runSimulation(config, 100);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        return config;
     }
 }
@@ -0,0 +1,439 @@
+package org.matsim.run;
+
+import com.typesafe.config.ConfigFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.OutputDirectoryLogging;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.EpisimReporting;
+import org.matsim.episim.InfectionEventHandler;
+import org.matsim.episim.ReplayHandler;
+import org.matsim.episim.Snapshot;
+import org.matsim.episim.StoppingCriterion;
+import org.matsim.episim.policy.FixedPolicy;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a parameter sweep of configs that replay the same events, with the events and population loaded once and shared by all runs.
+ * <p>
+ * Each run is simulated for a few probe days first. Runs of a grid usually only differ after their policy changes for the first time,
+ * so the probe of a {@link FixedPolicy} continues for the probe days after its first restriction, and only the wall time of the days
+ * after that restriction is taken as the rate to estimate the cost of the remaining days. The runs are continued from a snapshot of
+ * their last probe day with the most expensive ones first, so that no thread is left with a long run at the end of the sweep.
+ * The pool is sized to the available processors, but limited by the memory, which is measured as the heap occupied by the first run.
+ * <p>
+ * Grids created by {@link CreateBatteryForCluster} can be run with {@link #readInfo(Path)}, or from the command line with the path to
+ * {@code _info.txt}. Relative paths within the configs are resolved from the working directory, as for the cluster scripts.
+ * <p>
+ * Runs are cancelled as soon as one of the {@link StoppingCriterion}s applies to their daily report, which frees the thread for the next run.
+ */
+public final class Sweep {
+
+    private static final Logger log = LogManager.getLogger(Sweep.class);
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * Interval of days in which the progress of each run is logged.
+     */
+    private static final int PROGRESS_INTERVAL = 10;
+
+    private final Config config;
+    private final List<Config> runs;
+    private final int iterations;
+
+    private final List<StoppingCriterion> criteria = new ArrayList<>();
+
+    private int threads = 0;
+    private int probeDays = 5;
+
+    /**
+     * @param config     config to load events and population
+     * @param runs       configs to simulate, with distinct output directories
+     * @param iterations ending iteration (inclusive)
+     */
+    public Sweep(Config config, List<Config> runs, int iterations) {
+        this.config = config;
+        this.runs = runs;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            throw new IllegalArgumentException("Need _info.txt of the battery");
+
+        OutputDirectoryLogging.catchLogEntries();
+
+        List<Config> runs = readInfo(Paths.get(args[0]));
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        new Sweep(runs.get(0), runs, iterations).run();
+    }
+
+    /**
+     * Reads the configs of all runs listed in an {@code _info.txt}, as written by {@link CreateBatteryForCluster}.
+     * Config files are located next to the info file, the output directory is taken from the {@code Output} column.
+     */
+    public static List<Config> readInfo(Path info) throws IOException {
+        List<String> lines = Files.readAllLines(info);
+        List<String> header = Arrays.asList(lines.get(0).split(";"));
+        int configColumn = header.indexOf("Config");
+        int outputColumn = header.indexOf("Output");
+        if (configColumn < 0 || outputColumn < 0)
+            throw new IllegalArgumentException("Info file needs Config and Output columns: " + info);
+
+        Path dir = info.toAbsolutePath().getParent();
+        List<Config> runs = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank())
+                continue;
+
+            String[] row = line.split(";");
+            Config config = ConfigUtils.loadConfig(dir.resolve(row[configColumn]).toString(), new EpisimConfigGroup());
+            config.controler().setOutputDirectory(row[outputColumn]);
+            runs.add(config);
+        }
+
+        return runs;
+    }
+
+    /**
+     * Number of runs simulated at the same time, 0 to size the pool to processors and memory.
+     */
+    public Sweep setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Days measured to estimate the cost of each run, counted from the first restriction of a fixed policy.
+     * 0 to run the configs in the given order.
+     */
+    public Sweep setProbeDays(int probeDays) {
+        this.probeDays = probeDays;
+        return this;
+    }
+
+    /**
+     * Adds a criterion to stop runs early, which is checked after every day.
+     */
+    public Sweep addStoppingCriterion(StoppingCriterion criterion) {
+        criteria.add(criterion);
+        return this;
+    }
+
+    /**
+     * Simulates all runs. A failing run is logged and does not stop the other runs, but an exception is thrown at the end.
+     */
+    public void run() throws IOException {
+
+        EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+        if (episimConfig.isStreamEvents() && threads != 1)
+            throw new IllegalArgumentException("Streamed events can not be replayed concurrently, all events need to be held in memory");
+
+        List<Run> all = new ArrayList<>();
+        for (Config run : runs) {
+            EpisimConfigGroup runConfig = ConfigUtils.addOrGetModule(run, EpisimConfigGroup.class);
+            if (!Objects.equals(runConfig.getInputEventsFile(), episimConfig.getInputEventsFile())
+                    || runConfig.getFacilitiesHandling() != episimConfig.getFacilitiesHandling())
+                throw new IllegalArgumentException("All runs need to replay the same events, but " + run.controler().getOutputDirectory()
+                        + " uses " + runConfig.getInputEventsFile() + " with " + runConfig.getFacilitiesHandling());
+
+            if (runConfig.getNumberOfThreads() > 1) {
+                log.warn("Runs of a sweep are simulated with one thread each, ignoring {} threads of {}",
+                        runConfig.getNumberOfThreads(), run.controler().getOutputDirectory());
+                runConfig.setNumberOfThreads(1);
+            }
+
+            RunEpisim.prepareConfig(run);
+            all.add(new Run(run));
+        }
+
+        Scenario scenario = RunEpisim.loadScenario(config);
+
+        try (ReplayHandler replay = new ReplayHandler(episimConfig, scenario)) {
+
+            ForkJoinPool pool = createPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+            try {
+                if (probeDays > 0 && !all.isEmpty()) {
+                    // the first run is probed alone, the heap it occupies tells how much memory a run needs
+                    invokeAll(pool, all.subList(0, 1), run -> run.probe(scenario, replay));
+                    if (threads <= 0) {
+                        int n = limitByMemory(pool.getParallelism(), all.get(0).heapSize);
+                        if (n < pool.getParallelism()) {
+                            pool.shutdown();
+                            pool = createPool(n);
+                        }
+                    }
+
+                    invokeAll(pool, all.subList(1, all.size()), run -> run.probe(scenario, replay));
+
+                    all.sort(Comparator.comparingDouble(Run::getEstimate).reversed());
+                    log.info("Estimated {} to {} seconds for the remaining days of each run",
+                            all.get(all.size() - 1).getEstimate(), all.get(0).getEstimate());
+                }
+
+                log.info("Simulating {} runs with {} threads", all.size(), pool.getParallelism());
+
+                AtomicInteger finished = new AtomicInteger();
+                invokeAll(pool, all, run -> {
+                    run.simulate(scenario, replay);
+                    log.info("Finished run {} ({}/{}) after {} seconds", run.getName(), finished.incrementAndGet(), all.size(),
+                            run.getSeconds());
+                });
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        long stopped = all.stream().filter(run -> run.stoppedBy != null).count();
+        if (stopped > 0)
+            log.info("Stopped {} of {} runs early", stopped, all.size());
+
+        long failed = all.stream().filter(run -> run.failed).count();
+        if (failed > 0)
+            throw new IllegalStateException(String.format("%d of %d runs failed", failed, all.size()));
+
+        OutputDirectoryLogging.closeOutputDirLogging();
+    }
+
+    /**
+     * Creates a work-stealing pool, which takes runs in the order they have been submitted.
+     */
+    private static ForkJoinPool createPool(int threads) {
+        return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Number of runs that fit into the free heap at the same time, at most {@code n}.
+     * The used heap also contains garbage that has not been collected yet, so that the estimate errs on the side of fewer threads.
+     *
+     * @param perRun heap occupied by one run, 0 if unknown
+     */
+    private static int limitByMemory(int n, long perRun) {
+        if (perRun <= 0)
+            return n;
+
+        long free = Runtime.getRuntime().maxMemory() - memory.getHeapMemoryUsage().getUsed();
+        log.info("Measured {} MB per run with {} MB of free memory", perRun / (1024 * 1024), free / (1024 * 1024));
+        return (int) Math.max(1, Math.min(n, free / perRun));
+    }
+
+    /**
+     * Executes {@code action} for all runs that have neither failed nor been stopped yet, in their order, and waits until all are done.
+     * Failing runs are logged and not continued.
+     */
+    private static void invokeAll(ForkJoinPool pool, List<Run> runs, RunAction action) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Run run : runs) {
+            tasks.add(pool.submit(() -> {
+                if (run.failed || run.stoppedBy != null)
+                    return;
+
+                try {
+                    action.accept(run);
+                } catch (Exception e) {
+                    log.error("Run " + run.getName() + " failed", e);
+                    run.failed = true;
+                }
+            }));
+        }
+
+        try {
+            for (ForkJoinTask<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for runs", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error while simulating runs", e.getCause());
+        }
+    }
+
+    @FunctionalInterface
+    private interface RunAction {
+        void accept(Run run) throws IOException;
+    }
+
+    /**
+     * State of one run of the sweep.
+     */
+    private final class Run {
+
+        private final Config config;
+
+        /**
+         * Snapshot of the last probe day, null if the run has not been probed.
+         */
+        @Nullable
+        private Path snapshot;
+
+        /**
+         * Whether the snapshot has been written by the probe, which is deleted once the run has been resumed from it.
+         */
+        private boolean probed;
+
+        /**
+         * Last probe day and first day whose wall time is measured. The first day is never measured, because it also builds the trajectories.
+         */
+        private final int probeEnd;
+        private final int measureFrom;
+
+        /**
+         * Increase of the used heap until the last probe day, but at least the size of the snapshot.
+         */
+        private long heapSize;
+
+        private long probeNanos;
+        private int measuredDays;
+
+        private long start;
+        private long lastDay;
+        private volatile boolean failed;
+
+        /**
+         * Criterion that stopped the run, null if it has not been stopped.
+         */
+        @Nullable
+        private volatile StoppingCriterion stoppedBy;
+
+        private Run(Config config) {
+            this.config = config;
+
+            EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+            if (episimConfig.getStartFromSnapshot() != null)
+                this.snapshot = Paths.get(episimConfig.getStartFromSnapshot());
+
+            // days before the first restriction cost the same in all runs of a grid
+            long change = FixedPolicy.class.getName().equals(episimConfig.getPolicyClass())
+                    ? FixedPolicy.firstDifference(episimConfig.getPolicy(), ConfigFactory.empty()) : Long.MAX_VALUE;
+            if (change < iterations) {
+                this.measureFrom = (int) Math.max(1, change);
+                this.probeEnd = Math.min(iterations, Math.max(probeDays, measureFrom + probeDays - 1));
+            } else {
+                this.measureFrom = 1;
+                this.probeEnd = Math.min(iterations, probeDays);
+            }
+        }
+
+        private String getName() {
+            return config.controler().getOutputDirectory();
+        }
+
+        /**
+         * Estimated seconds for the remaining days. Runs that have not been measured are estimated to be the most expensive.
+         */
+        private double getEstimate() {
+            if (measuredDays == 0)
+                return Double.POSITIVE_INFINITY;
+
+            return (double) probeNanos / measuredDays * (iterations - probeEnd) / 1e9;
+        }
+
+        private long getSeconds() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        }
+
+        /**
+         * Checks the stopping criteria on the report of the day.
+         *
+         * @return whether the run should be continued
+         */
+        private boolean check(InfectionEventHandler handler, int day) {
+            for (StoppingCriterion criterion : criteria) {
+                if (criterion.shouldStop(handler.getReport())) {
+                    stoppedBy = criterion;
+                    log.info("Stopped run {} at day {}: {}", getName(), day, criterion);
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Simulates the probe days and writes a snapshot of the last one.
+         */
+        private void probe(Scenario scenario, ReplayHandler replay) throws IOException {
+            start = System.nanoTime();
+
+            // runs starting from later snapshots can not be probed
+            Snapshot from = snapshot != null ? Snapshot.read(snapshot) : null;
+            if (from != null && from.getDay() >= probeEnd)
+                return;
+
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            lastDay = System.nanoTime();
+            InfectionEventHandler handler = RunEpisim.simulate(config, scenario, replay, from, probeEnd, (h, day) -> {
+                long now = System.nanoTime();
+                if (day >= measureFrom) {
+                    probeNanos += now - lastDay;
+                    measuredDays++;
+                }
+                lastDay = now;
+
+                // measured while the state of the run is still referenced
+                if (day == probeEnd)
+                    heapSize = memory.getHeapMemoryUsage().getUsed() - heap;
+
+                return check(h, day);
+            });
+
+            if (stoppedBy != null) {
+                handler.close();
+                return;
+            }
+
+            Path path = Paths.get(getName()).resolve(String.format("snapshot_%03d.episim", probeEnd));
+            handler.writeSnapshot(path);
+            handler.close();
+
+            // a collection during the probe lowers the used heap, but the state can not be smaller than its primitives
+            snapshot = path;
+            probed = true;
+            heapSize = Math.max(heapSize, Files.size(path));
+            log.info("Probed run {}: {} ms per day", getName(), measuredDays > 0 ? probeNanos / measuredDays / 1_000_000 : -1);
+        }
+
+        /**
+         * Simulates the remaining days and logs progress. The snapshot of the probe is read into memory and deleted.
+         */
+        private void simulate(Scenario scenario, ReplayHandler replay) throws IOException {
+            if (start == 0)
+                start = System.nanoTime();
+
+            Snapshot from = snapshot != null ? Snapshot.read(snapshot) : null;
+            if (probed)
+                Files.delete(snapshot);
+
+            RunEpisim.simulate(config, scenario, replay, from, iterations, (handler, day) -> {
+                if (day % PROGRESS_INTERVAL == 0) {
+                    EpisimReporting.InfectionReport report = handler.getReport();
+                    log.info("Run {} at day {}/{}: {} infected, {} in quarantine", getName(), day, iterations,
+                            report.nTotalInfected, report.nInQuarantine);
+                }
+                return check(handler, day);
+            }).close();
+        }
+    }
+}
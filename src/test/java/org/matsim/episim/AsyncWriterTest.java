@@ -0,0 +1,80 @@
+package org.matsim.episim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AsyncWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writeAndClose() throws IOException {
+		Path a = folder.getRoot().toPath().resolve("a.txt");
+		Path b = folder.getRoot().toPath().resolve("b.txt");
+
+		AsyncWriter writer = new AsyncWriter("test");
+		int fa = writer.register(Files.newBufferedWriter(a));
+		int fb = writer.register(Files.newBufferedWriter(b));
+
+		// enough lines to be handed over in several batches
+		for (int i = 0; i < 100_000; i++) {
+			writer.writeLine(fa, "a" + i);
+			if (i % 10 == 0)
+				writer.writeLine(fb, "b" + i);
+			if (i % 30_000 == 0)
+				writer.flush();
+		}
+
+		writer.close();
+
+		List<String> linesA = Files.readAllLines(a);
+		assertThat(linesA).hasSize(100_000);
+		assertThat(linesA.get(0)).isEqualTo("a0");
+		assertThat(linesA.get(99_999)).isEqualTo("a99999");
+
+		List<String> linesB = Files.readAllLines(b);
+		assertThat(linesB).hasSize(10_000);
+		assertThat(linesB.get(9_999)).isEqualTo("b99990");
+
+		assertThatThrownBy(() -> writer.writeLine(fa, "closed"))
+				.isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	public void sync() throws IOException {
+		Path a = folder.getRoot().toPath().resolve("a.txt");
+
+		AsyncWriter writer = new AsyncWriter("test");
+		int fa = writer.register(Files.newBufferedWriter(a));
+		for (int i = 0; i < 1000; i++)
+			writer.writeLine(fa, "a" + i);
+
+		// all counted lines are on disk, before the writer is closed
+		writer.sync();
+		assertThat(Files.readAllLines(a)).hasSize((int) writer.getLines(fa));
+
+		writer.close();
+	}
+
+	@Test
+	public void openWriters() throws IOException {
+		int before = AsyncWriter.getNumberOfOpenWriters();
+
+		// writers are tracked for the shutdown hook until they are closed
+		AsyncWriter writer = new AsyncWriter("test");
+		assertThat(AsyncWriter.getNumberOfOpenWriters()).isEqualTo(before + 1);
+
+		writer.close();
+		assertThat(AsyncWriter.getNumberOfOpenWriters()).isEqualTo(before);
+	}
+}
@@ -0,0 +1,84 @@
+package org.matsim.episim;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ContactLogTest {
+
+	private List<EpisimPerson> persons;
+
+	@Before
+	public void setup() {
+		EventsManager manager = Mockito.mock(EventsManager.class);
+		PersonStore store = new PersonStore(10, null, manager);
+		persons = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			persons.add(new EpisimPerson(i, Id.createPersonId(i), new Attributes(), store));
+	}
+
+	@Test
+	public void contactsAreSymmetric() {
+		persons.get(0).addTraceableContactPerson(persons.get(3), 1);
+		persons.get(0).addTraceableContactPerson(persons.get(1), 1);
+		persons.get(3).addTraceableContactPerson(persons.get(0), 1);
+		persons.get(2).addTraceableContactPerson(persons.get(3), 1);
+
+		assertThat(persons.get(0).getTraceableContactPersons(1)).containsExactly(persons.get(3), persons.get(1));
+		assertThat(persons.get(3).getTraceableContactPersons(1)).containsExactly(persons.get(0), persons.get(2));
+		assertThat(persons.get(1).getTraceableContactPersons(1)).containsExactly(persons.get(0));
+		assertThat(persons.get(9).getTraceableContactPersons(1)).isEmpty();
+	}
+
+	@Test
+	public void previousDaysAreDiscarded() {
+		persons.get(0).addTraceableContactPerson(persons.get(1), 1);
+		assertThat(persons.get(0).getTraceableContactPersons(1)).containsExactly(persons.get(1));
+
+		persons.get(0).addTraceableContactPerson(persons.get(2), 2);
+		assertThat(persons.get(0).getTraceableContactPersons(1)).isEmpty();
+		assertThat(persons.get(0).getTraceableContactPersons(2)).containsExactly(persons.get(2));
+
+		// contacts added after a lookup are found as well
+		persons.get(4).addTraceableContactPerson(persons.get(0), 2);
+		assertThat(persons.get(0).getTraceableContactPersons(2)).containsExactly(persons.get(2), persons.get(4));
+	}
+
+	@Test
+	public void testUtilsStorePersonsTogether() {
+		InfectionEventHandler.EpisimFacility facility = EpisimTestUtils.createFacility(2, "home", p -> { });
+		EpisimPerson first = facility.getPersons().get(0);
+		EpisimPerson second = facility.getPersons().get(1);
+
+		first.addTraceableContactPerson(second, 1);
+		assertThat(second.getTraceableContactPersons(1)).containsExactly(first);
+	}
+
+	@Test
+	public void window() {
+		EventsManager manager = Mockito.mock(EventsManager.class);
+		PersonStore store = new PersonStore(10, null, manager, 3, 2);
+		List<EpisimPerson> p = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			p.add(new EpisimPerson(i, Id.createPersonId(i), new Attributes(), store));
+
+		for (int day = 0; day < 5; day++) {
+			p.get(0).addTraceableContactPerson(p.get(day + 1), day);
+			// exceeds the capacity of two contacts per day
+			p.get(8).addTraceableContactPerson(p.get(9), day);
+			p.get(7).addTraceableContactPerson(p.get(9), day);
+		}
+
+		assertThat(p.get(0).getTraceableContactPersons(0, 4)).containsExactly(p.get(3), p.get(4), p.get(5));
+		assertThat(p.get(0).getTraceableContactPersons(3, 4)).containsExactly(p.get(4), p.get(5));
+		assertThat(p.get(9).getTraceableContactPersons(0, 4)).containsExactly(p.get(8));
+	}
+}
@@ -0,0 +1,46 @@
+package org.matsim.episim;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures persons entering and leaving containers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContainerBenchmark {
+
+	@Param({"10", "1000"})
+	private int occupants;
+
+	private InfectionEventHandler.EpisimFacility facility;
+	private List<EpisimPerson> persons;
+	private Random rnd;
+
+	@Setup
+	public void setup() {
+		facility = EpisimTestUtils.createFacility(occupants, "home", p -> {
+		});
+		persons = new ArrayList<>(facility.getPersons());
+		rnd = new Random(0);
+	}
+
+	/**
+	 * Removes a random occupant and adds it again.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(2)
+	public void removeAndAddPerson() {
+		EpisimPerson person = persons.get(rnd.nextInt(occupants));
+		facility.removePerson(person);
+		facility.addPerson(person, 0);
+	}
+}
@@ -1,14 +1,22 @@
 package org.matsim.episim;
 
 import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
+import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.Facility;
 import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.vehicles.Vehicle;
 import org.mockito.Mockito;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -49,6 +57,16 @@ public class EpisimTestUtils {
         return episimConfig;
     }
 
+    /**
+     * Creates an empty store for the persons of one test.
+     */
+    static PersonStore createStore() {
+        return new PersonStore(0, null, manager);
+    }
+
+    /**
+     * Create an empty facility, persons added with {@link #createPerson(String, EpisimContainer)} are stored in a new store of this facility.
+     */
     public static InfectionEventHandler.EpisimFacility createFacility() {
         return new InfectionEventHandler.EpisimFacility(Id.create(ID.getAndIncrement(), Facility.class));
     }
@@ -62,16 +80,23 @@ public class EpisimTestUtils {
     }
 
     /**
-     * Create a person and add to container.
+     * Create a person and add to container. The person is stored together with the persons already in the container,
+     * or in a new store otherwise.
      */
     public static EpisimPerson createPerson(String currentAct, @Nullable EpisimContainer<?> container) {
-        EpisimPerson p = new EpisimPerson(Id.createPersonId(ID.getAndIncrement()),new Attributes(), manager);
+        PersonStore store = container != null && container.getStore() != null ? container.getStore() : createStore();
+        return createPerson(store, currentAct, container);
+    }
+
+    /**
+     * Create a person in {@code store} and add to container.
+     */
+    static EpisimPerson createPerson(PersonStore store, String currentAct, @Nullable EpisimContainer<?> container) {
+        EpisimPerson p = new EpisimPerson(store.addSlot(), Id.createPersonId(ID.getAndIncrement()), new Attributes(), store);
         p.getTrajectory().add(currentAct);
 
-        if (container != null) {
+        if (container != null)
             container.addPerson(p, 0);
-            p.setLastFacilityId(container.getContainerId().toString());
-        }
 
         return p;
     }
@@ -89,11 +114,93 @@ public class EpisimTestUtils {
         return container;
     }
 
+    /**
+     * Creates one day of events, where each of the {@code n} persons travels by pt from home to work and back.
+     * Four persons share a home, forty a vehicle and fifty a work place.
+     */
+    public static EventStore createEventStore(int n) {
+        EventStore store = new EventStore();
+        createEvents(n).forEach(store::add);
+        store.trim();
+        return store;
+    }
+
+    /**
+     * Creates the events of {@link #createEventStore(int)}, ordered by time.
+     */
+    public static List<Event> createEvents(int n) {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Id<Person> person = Id.createPersonId(i);
+            Id<Link> homeLink = Id.createLinkId("h" + i / 4);
+            Id<Link> workLink = Id.createLinkId("w" + i / 50);
+            Id<ActivityFacility> home = Id.create("home_" + i / 4, ActivityFacility.class);
+            Id<ActivityFacility> work = Id.create("work_" + i / 50, ActivityFacility.class);
+            Id<Vehicle> vehicle = Id.createVehicleId("tr_" + i / 40);
+
+            // departures are spread over the first half hour
+            double offset = (i % 40) * 45;
+
+            events.add(new ActivityEndEvent(7 * 3600 + offset, person, homeLink, home, "home"));
+            events.add(new PersonEntersVehicleEvent(7 * 3600 + offset + 60, person, vehicle));
+            events.add(new PersonLeavesVehicleEvent(8 * 3600 + offset, person, vehicle));
+            events.add(new ActivityStartEvent(8 * 3600 + offset, person, workLink, work, "work", null));
+            events.add(new ActivityEndEvent(16 * 3600 + offset, person, workLink, work, "work"));
+            events.add(new PersonEntersVehicleEvent(16 * 3600 + offset + 60, person, vehicle));
+            events.add(new PersonLeavesVehicleEvent(17 * 3600 + offset, person, vehicle));
+            events.add(new ActivityStartEvent(17 * 3600 + offset, person, homeLink, home, "home", null));
+        }
+
+        // sort is stable and keeps the order of events at the same time
+        events.sort(Comparator.comparingDouble(Event::getTime));
+        return events;
+    }
+
+    /**
+     * Create events of {@code n} persons, who all ride the same vehicle {@code rides} times a day between home and work.
+     * Persons leave the vehicle in a different order than they entered it.
+     */
+    public static EventStore createRideEventStore(int n, int rides) {
+        List<Event> events = new ArrayList<>();
+        Id<Vehicle> vehicle = Id.createVehicleId("tr_0");
+        for (int i = 0; i < n; i++) {
+            Id<Person> person = Id.createPersonId(i);
+            Id<Link> homeLink = Id.createLinkId("h" + i / 4);
+            Id<Link> workLink = Id.createLinkId("w" + i / 20);
+            Id<ActivityFacility> home = Id.create("home_" + i / 4, ActivityFacility.class);
+            Id<ActivityFacility> work = Id.create("work_" + i / 20, ActivityFacility.class);
+
+            double enter = i * 20;
+            double leave = 3600 + ((i * 37) % n) * 20;
+
+            events.add(new ActivityEndEvent(6 * 3600 + enter - 60, person, homeLink, home, "home"));
+            for (int k = 0; k < rides; k++) {
+                double start = (6 + 3 * k) * 3600;
+                boolean toWork = k % 2 == 0;
+
+                events.add(new PersonEntersVehicleEvent(start + enter, person, vehicle));
+                events.add(new PersonLeavesVehicleEvent(start + leave, person, vehicle));
+                events.add(new ActivityStartEvent(start + leave, person, toWork ? workLink : homeLink,
+                        toWork ? work : home, toWork ? "work" : "home", null));
+                if (k < rides - 1)
+                    events.add(new ActivityEndEvent(start + 3 * 3600 + enter - 60, person, toWork ? workLink : homeLink,
+                            toWork ? work : home, toWork ? "work" : "home"));
+            }
+        }
+
+        events.sort(Comparator.comparingDouble(Event::getTime));
+
+        EventStore store = new EventStore();
+        events.forEach(store::add);
+        store.trim();
+        return store;
+    }
+
     /**
      * Remove person from container.
      */
     public static void removePerson(EpisimContainer<?> container, EpisimPerson p) {
-        container.removePerson(p.getPersonId());
+        container.removePerson(p);
     }
 
 }
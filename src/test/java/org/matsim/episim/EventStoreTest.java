@@ -0,0 +1,209 @@
+package org.matsim.episim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.facilities.ActivityFacility;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EventStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static EventStore createStore() {
+		EventStore store = new EventStore();
+
+		store.add(new ActivityEndEvent(3600, Id.createPersonId("p1"), Id.createLinkId("l1"),
+				Id.create("f1", ActivityFacility.class), "home"));
+		store.add(new PersonEntersVehicleEvent(3700, Id.createPersonId("p1"), Id.createVehicleId("tr_1")));
+		store.add(new PersonEntersVehicleEvent(3800, Id.createPersonId("p2"), Id.createVehicleId("tr_1")));
+		store.add(new PersonLeavesVehicleEvent(4000.5, Id.createPersonId("p1"), Id.createVehicleId("tr_1")));
+		store.add(new ActivityStartEvent(4100, Id.createPersonId("p1"), Id.create("l2", Link.class),
+				null, "work", null));
+
+		store.trim();
+		return store;
+	}
+
+	@Test
+	public void interning() {
+		EventStore store = createStore();
+
+		assertThat(store.size()).isEqualTo(5);
+		assertThat(store.getNumberOfPersons()).isEqualTo(2);
+		assertThat(store.getNumberOfVehicles()).isEqualTo(1);
+		assertThat(store.getNumberOfActivityTypes()).isEqualTo(2);
+
+		assertThat(store.getPerson(1)).isEqualTo(store.getPerson(0));
+		assertThat(store.getLocation(2)).isEqualTo(store.getLocation(1));
+		assertThat(store.getKind(3)).isEqualTo(EventStore.LEAVES_VEHICLE);
+		assertThat(store.getTime(3)).isEqualTo(4000);
+		assertThat(store.getRoundedTimes()).isEqualTo(1);
+		assertThat(store.getFacilityId(store.getLocation(4))).isNull();
+
+		// interning maps are released after trimming
+		assertThatThrownBy(() -> store.add(new PersonEntersVehicleEvent(5000, Id.createPersonId("p3"), Id.createVehicleId("tr_1"))))
+				.isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	public void readBlocks() throws IOException {
+		// columns are larger than the buffer they are read through
+		EventStore store = EpisimTestUtils.createEventStore(50_000);
+
+		Path path = folder.getRoot().toPath().resolve("blocks.episim");
+		store.write(path);
+
+		EventStore read = EventStore.read(path);
+		assertThat(read.size()).isEqualTo(store.size());
+		for (int i = 0; i < store.size(); i++) {
+			assertThat(read.getKind(i)).isEqualTo(store.getKind(i));
+			assertThat(read.getTime(i)).isEqualTo(store.getTime(i));
+			assertThat(read.getPerson(i)).isEqualTo(store.getPerson(i));
+			assertThat(read.getCoord(i)).isEqualTo(store.getCoord(i));
+		}
+	}
+
+	@Test
+	public void readWrite() throws IOException {
+		EventStore store = createStore();
+
+		Path path = folder.getRoot().toPath().resolve("events.episim");
+		store.write(path);
+
+		EventStore read = EventStore.read(path);
+
+		assertThat(read.size()).isEqualTo(store.size());
+		assertThat(read.getRoundedTimes()).isEqualTo(store.getRoundedTimes());
+
+		for (int i = 0; i < store.size(); i++) {
+			assertThat(read.getKind(i)).isEqualTo(store.getKind(i));
+			assertThat(read.getTime(i)).isEqualTo(store.getTime(i));
+			assertThat(read.getPersonId(read.getPerson(i))).isEqualTo(store.getPersonId(store.getPerson(i)));
+			assertThat(read.getActivityType(i)).isEqualTo(store.getActivityType(i));
+			assertThat(read.getLink(i)).isEqualTo(store.getLink(i));
+			assertThat(read.getLocation(i)).isEqualTo(store.getLocation(i));
+		}
+
+		assertThat(read.getFacilityId(read.getLocation(0))).isEqualTo(Id.create("f1", ActivityFacility.class));
+		assertThat(read.getFacilityId(read.getLocation(4))).isNull();
+		assertThat(read.getVehicleId(0)).isEqualTo(Id.createVehicleId("tr_1"));
+		assertThat(read.getActivityTypeName(read.getActivityType(4))).isEqualTo("work");
+	}
+
+	@Test
+	public void coordinates() throws IOException {
+		EventStore store = new EventStore();
+		store.add(new ActivityStartEvent(3600, Id.createPersonId("p1"), Id.createLinkId("l1"),
+				null, "home", new Coord(4595001.123, 5821000.5)));
+		store.add(new ActivityStartEvent(3700, Id.createPersonId("p2"), Id.createLinkId("l1"),
+				null, "home", new Coord(4595001.123, 5821000.5)));
+		store.add(new ActivityStartEvent(3800, Id.createPersonId("p3"), Id.createLinkId("l2"),
+				null, "work", new Coord(1, 2, 3)));
+		store.add(new ActivityEndEvent(3900, Id.createPersonId("p1"), Id.createLinkId("l1"), null, "home"));
+		store.trim();
+
+		Path path = folder.getRoot().toPath().resolve("coords.episim");
+		store.write(path);
+		EventStore read = EventStore.read(path);
+
+		assertThat(read.getCoord(1)).isEqualTo(read.getCoord(0));
+		assertThat(read.getCoordinate(read.getCoord(0))).isEqualTo(new Coord(4595001.123, 5821000.5));
+		assertThat(read.getCoordinate(read.getCoord(2))).isEqualTo(new Coord(1, 2, 3));
+		assertThat(read.getCoord(3)).isEqualTo(-1);
+	}
+
+	@Test
+	public void truncated() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("truncated.episim");
+		createStore().write(path);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		assertThatThrownBy(() -> EventStore.read(path)).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> EventStore.readHeader(path)).isInstanceOf(IOException.class);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(20);
+		}
+
+		assertThatThrownBy(() -> EventStore.read(path)).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	public void stream() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(100);
+
+		Path path = folder.getRoot().toPath().resolve("stream.episim");
+		store.write(path);
+
+		EventStore read = EventStore.readHeader(path);
+		assertThat(read.size()).isEqualTo(store.size());
+		assertThat(read.isLoaded()).isFalse();
+
+		try (EventStream stream = new EventStream(path, read, 64, 2)) {
+			// every day starts from the beginning again
+			for (int day = 0; day < 3; day++) {
+				int n = 0;
+				for (EventStream.Chunk chunk = stream.next(); chunk != null; chunk = stream.next()) {
+					assertThat(chunk.getOffset()).isEqualTo(n);
+					for (int i = chunk.getOffset(); i < chunk.getEnd(); i++) {
+						assertThat(read.getKind(i)).isEqualTo(store.getKind(i));
+						assertThat(read.getTime(i)).isEqualTo(store.getTime(i));
+						assertThat(read.getPerson(i)).isEqualTo(store.getPerson(i));
+						assertThat(read.getLocation(i)).isEqualTo(store.getLocation(i));
+						assertThat(read.getLink(i)).isEqualTo(store.getLink(i));
+						assertThat(read.getActivityType(i)).isEqualTo(store.getActivityType(i));
+					}
+
+					n = chunk.getEnd();
+					stream.release(chunk);
+				}
+
+				assertThat(n).isEqualTo(store.size());
+			}
+		}
+	}
+
+	@Test
+	public void streamSkipDay() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(100);
+
+		Path path = folder.getRoot().toPath().resolve("stream.episim");
+		store.write(path);
+
+		EventStore read = EventStore.readHeader(path);
+		try (EventStream stream = new EventStream(path, read, 64, 2)) {
+			// the first day fails in its second chunk
+			stream.release(stream.next());
+			stream.skipDay(stream.next());
+
+			// the next day starts with its first chunk
+			int n = 0;
+			for (EventStream.Chunk chunk = stream.next(); chunk != null; chunk = stream.next()) {
+				assertThat(chunk.getOffset()).isEqualTo(n);
+				n = chunk.getEnd();
+				stream.release(chunk);
+			}
+
+			assertThat(n).isEqualTo(store.size());
+		}
+	}
+}
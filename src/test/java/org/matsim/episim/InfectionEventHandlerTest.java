@@ -0,0 +1,394 @@
+package org.matsim.episim;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.episim.jfr.ContainerEvaluationEvent;
+import org.matsim.episim.jfr.DayEvent;
+import org.matsim.episim.jfr.ReportEvent;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InfectionEventHandlerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Config createConfig(Path output) {
+		Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
+		config.controler().setOutputDirectory(output.toString());
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setFacilitiesHandling(EpisimConfigGroup.FacilitiesHandling.snz);
+		episimConfig.setSampleSize(1);
+		episimConfig.setCalibrationParameter(0.0001);
+		episimConfig.setPutTracablePersonsInQuarantine(EpisimConfigGroup.PutTracablePersonsInQuarantine.yes);
+		episimConfig.setTracingDays(3);
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("home").setContactIntensity(3));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("work").setContactIntensity(1));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("tr").setContactIntensity(10));
+
+		return config;
+	}
+
+	/**
+	 * Creates a handler for the config, which is not initialized yet.
+	 */
+	private static InfectionEventHandler createHandler(Config config, @Nullable Snapshot snapshot) {
+		return new InfectionEventHandler(config, ScenarioUtils.createScenario(config), EventsUtils.createEventsManager(), snapshot);
+	}
+
+	/**
+	 * Simulates the days from {@code from} to {@code to} (inclusive).
+	 */
+	private static void simulate(InfectionEventHandler handler, ReplayHandler replay, int from, int to) {
+		for (int day = from; day <= to; day++) {
+			handler.reset(day);
+			replay.replayEvents(handler, null, day);
+		}
+	}
+
+	private static List<String> states(InfectionEventHandler handler) {
+		List<String> states = new ArrayList<>();
+		for (EpisimPerson p : handler.getPersons()) {
+			states.add(p.getPersonId() + " " + p.getDiseaseStatus() + " " + p.getQuarantineStatus() + " " + p.getInfectionDate()
+					+ " " + p.getQuarantineDate() + " " + p.getCurrentContainer().getContainerId());
+		}
+		return states;
+	}
+
+	@Test
+	public void snapshot() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		Path output = folder.getRoot().toPath();
+		Path snapshot = output.resolve("snapshot_005.episim");
+
+		Config config = createConfig(output);
+		InfectionEventHandler handler = createHandler(config, null);
+		handler.init(store);
+		ReplayHandler replay = new ReplayHandler(store, null);
+
+		simulate(handler, replay, 0, 5);
+		handler.writeSnapshot(snapshot);
+		simulate(handler, replay, 6, 10);
+
+		List<String> expected = states(handler);
+		handler.close();
+
+		List<String> infections = Files.readAllLines(output.resolve("infections.txt"));
+		List<String> infectionEvents = Files.readAllLines(output.resolve("infectionEvents.txt"));
+		assertThat(infections).hasSize(11);
+
+		// resume in the same output directory, whose files are continued after the snapshot
+		Snapshot read = Snapshot.read(snapshot);
+		assertThat(read.getDay()).isEqualTo(5);
+
+		InfectionEventHandler resumed = createHandler(config, read);
+		resumed.init(store);
+		simulate(resumed, replay, 6, 10);
+
+		assertThat(states(resumed)).isEqualTo(expected);
+		resumed.close();
+
+		assertThat(Files.readAllLines(output.resolve("infections.txt"))).isEqualTo(infections);
+		assertThat(Files.readAllLines(output.resolve("infectionEvents.txt"))).isEqualTo(infectionEvents);
+
+		// one timing entry per day, continued after the snapshot
+		assertThat(Files.readAllLines(output.resolve("timing.tsv"))).hasSize(12);
+	}
+
+	@Test
+	public void fork() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		Path common = folder.newFolder("common").toPath();
+		ReplayHandler replay = new ReplayHandler(store, null);
+
+		Config config = createConfig(common);
+		InfectionEventHandler handler = createHandler(config, null);
+		handler.init(store);
+		simulate(handler, replay, 0, 3);
+
+		Snapshot snapshot = handler.snapshot();
+		handler.close();
+
+		// the same config simulated without fork
+		Path unforkedOutput = folder.newFolder("unforked").toPath();
+		config = createConfig(unforkedOutput);
+		InfectionEventHandler unforked = createHandler(config, null);
+		unforked.init(store);
+		simulate(unforked, replay, 0, 8);
+		List<String> expected = states(unforked);
+		unforked.close();
+
+		// both forks continue from the same snapshot and have the same results as the run without fork
+		for (String name : new String[]{"a", "b"}) {
+			Path output = folder.newFolder(name).toPath();
+			config = createConfig(output);
+			InfectionEventHandler fork = createHandler(config, snapshot);
+			fork.init(store);
+			simulate(fork, replay, 4, 8);
+
+			assertThat(states(fork)).isEqualTo(expected);
+			fork.close();
+
+			// output of the common days is copied
+			assertThat(Files.readAllLines(output.resolve("infections.txt")))
+					.isEqualTo(Files.readAllLines(unforkedOutput.resolve("infections.txt")));
+		}
+	}
+
+	/**
+	 * Simulates the days from 0 to {@code to} with the given number of threads and tracing capacity and returns the final states.
+	 */
+	private List<String> simulateWithThreads(EventStore store, Path output, int threads, int tracingCapacity, int to) {
+		Config config = createConfig(output);
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setNumberOfThreads(threads);
+		episimConfig.setTracingCapacity(tracingCapacity);
+
+		InfectionEventHandler handler = createHandler(config, null);
+		handler.init(store);
+		simulate(handler, new ReplayHandler(store, null), 0, to);
+		handler.close();
+
+		return states(handler);
+	}
+
+	@Test
+	public void parallelReplay() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+
+		Path sequential = folder.newFolder("threads1").toPath();
+		List<String> expected = simulateWithThreads(store, sequential, 1, Integer.MAX_VALUE, 10);
+
+		// the epidemic spreads beyond the initial infections
+		assertThat(expected).filteredOn(s -> !s.contains(" susceptible ")).hasSizeGreaterThan(10);
+
+		for (int threads : new int[]{2, 4}) {
+			Path output = folder.newFolder("threads" + threads).toPath();
+			assertThat(simulateWithThreads(store, output, threads, Integer.MAX_VALUE, 10)).isEqualTo(expected);
+			assertThat(Files.readAllLines(output.resolve("infections.txt")))
+					.isEqualTo(Files.readAllLines(sequential.resolve("infections.txt")));
+		}
+	}
+
+	@Test
+	public void parallelReplayRides() throws IOException {
+		// occupants are swapped around in the vehicle, while persons enter and leave in different order
+		EventStore store = EpisimTestUtils.createRideEventStore(60, 4);
+
+		Path sequential = folder.newFolder("threads1").toPath();
+		List<String> expected = simulateWithThreads(store, sequential, 1, Integer.MAX_VALUE, 6);
+
+		Path output = folder.newFolder("threads4").toPath();
+		assertThat(simulateWithThreads(store, output, 4, Integer.MAX_VALUE, 6)).isEqualTo(expected);
+		assertThat(Files.readAllLines(output.resolve("infections.txt")))
+				.isEqualTo(Files.readAllLines(sequential.resolve("infections.txt")));
+	}
+
+	@Test
+	public void parallelReplayTracingCapacity() throws IOException {
+		// contacts beyond the capacity are dropped, which contacts are kept depends on the order in which they are traced
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+
+		Path sequential = folder.newFolder("threads1").toPath();
+		List<String> expected = simulateWithThreads(store, sequential, 1, 500, 10);
+
+		for (int threads : new int[]{2, 4}) {
+			Path output = folder.newFolder("threads" + threads).toPath();
+			assertThat(simulateWithThreads(store, output, threads, 500, 10)).isEqualTo(expected);
+			assertThat(Files.readAllLines(output.resolve("infections.txt")))
+					.isEqualTo(Files.readAllLines(sequential.resolve("infections.txt")));
+		}
+	}
+
+	@Test
+	public void streamWithThreads() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		ReplayHandler memory = new ReplayHandler(store, null);
+
+		Config config = createConfig(folder.newFolder("memory").toPath());
+		InfectionEventHandler expected = createHandler(config, null);
+		expected.init(store);
+		simulate(expected, memory, 0, 5);
+		expected.close();
+
+		// all events fit into one chunk, the cache is created directly from the store
+		Path events = folder.newFile("events.xml").toPath();
+		config = createConfig(folder.newFolder("stream").toPath());
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setInputEventsFile(events.toString());
+		episimConfig.setStreamEvents(true);
+		episimConfig.setNumberOfThreads(2);
+		store.write(ReplayHandler.getCachePath(episimConfig));
+
+		// streamed days are simulated sequentially, even with several threads
+		try (ReplayHandler stream = new ReplayHandler(episimConfig, null)) {
+			InfectionEventHandler handler = createHandler(config, null);
+			handler.init(stream);
+			simulate(handler, stream, 0, 5);
+			handler.close();
+
+			assertThat(states(handler)).isEqualTo(states(expected));
+		}
+	}
+
+	@Test
+	public void streamAfterFailure() throws IOException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		ReplayHandler memory = new ReplayHandler(store, null);
+
+		Config config = createConfig(folder.newFolder("memory").toPath());
+		InfectionEventHandler expected = createHandler(config, null);
+		expected.init(store);
+		simulate(expected, memory, 0, 3);
+		expected.close();
+
+		Path events = folder.newFile("events.xml").toPath();
+		config = createConfig(folder.newFolder("stream").toPath());
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setInputEventsFile(events.toString());
+		episimConfig.setStreamEvents(true);
+		store.write(ReplayHandler.getCachePath(episimConfig));
+
+		try (ReplayHandler stream = new ReplayHandler(episimConfig, null)) {
+			InfectionEventHandler failed = createHandler(config, null);
+			failed.init(stream);
+			failed.reset(0);
+
+			// replay fails in the middle of the day
+			AtomicInteger n = new AtomicInteger();
+			assertThatThrownBy(() -> stream.replayEvents(failed, e -> {
+				if (n.incrementAndGet() == 100)
+					throw new IllegalStateException("Failed");
+			}, 0)).hasMessage("Failed");
+
+			failed.close();
+
+			// another handler replays all events of the following days
+			config = createConfig(folder.newFolder("resumed").toPath());
+			InfectionEventHandler handler = createHandler(config, null);
+			handler.init(stream);
+			simulate(handler, stream, 0, 3);
+			handler.close();
+
+			assertThat(states(handler)).isEqualTo(states(expected));
+		}
+	}
+
+	@Test
+	public void sharedEvents() throws Exception {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		ReplayHandler replay = new ReplayHandler(store, null);
+
+		Config config = createConfig(folder.newFolder("single").toPath());
+		InfectionEventHandler single = createHandler(config, null);
+		single.init(store);
+		simulate(single, replay, 0, 8);
+
+		List<String> expected = states(single);
+		single.close();
+
+		// handlers replaying the shared events concurrently have the same results as the handler with its own index
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		List<Future<List<String>>> results = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Config shared = createConfig(folder.newFolder("shared" + i).toPath());
+			results.add(executor.submit(() -> {
+				InfectionEventHandler handler = createHandler(shared, null);
+				handler.init(replay);
+				simulate(handler, replay, 0, 8);
+				handler.close();
+				return states(handler);
+			}));
+		}
+
+		for (Future<List<String>> result : results)
+			assertThat(result.get()).isEqualTo(expected);
+
+		executor.shutdown();
+	}
+
+	@Test
+	public void flightRecorderEvents() throws IOException, ParseException {
+		EventStore store = EpisimTestUtils.createEventStore(2000);
+		Path output = folder.getRoot().toPath();
+		Path file = output.resolve("episim.jfr");
+
+		Config config = createConfig(output);
+		InfectionEventHandler handler = createHandler(config, null);
+		handler.init(store);
+		ReplayHandler replay = new ReplayHandler(store, null);
+
+		try (Recording recording = new Recording()) {
+			recording.enable(ContainerEvaluationEvent.class);
+			recording.enable(DayEvent.class);
+			recording.enable(ReportEvent.class);
+			recording.start();
+
+			simulate(handler, replay, 0, 3);
+
+			recording.stop();
+			recording.dump(file);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		Map<String, Long> counts = events.stream()
+				.collect(Collectors.groupingBy(e -> e.getEventType().getName(), Collectors.counting()));
+
+		assertThat(counts).containsEntry("org.matsim.episim.Day", 4L)
+				.containsEntry("org.matsim.episim.Report", 3L)
+				.containsKey("org.matsim.episim.ContainerEvaluation");
+
+		List<RecordedEvent> evaluations = events.stream()
+				.filter(e -> e.getEventType().getName().equals("org.matsim.episim.ContainerEvaluation"))
+				.collect(Collectors.toList());
+
+		for (RecordedEvent e : evaluations) {
+			assertThat(e.getInt("occupants")).isGreaterThanOrEqualTo(e.getInt("contacts"));
+			assertThat(e.getBoolean("vehicle")).isEqualTo(e.getString("container").startsWith("tr_"));
+		}
+
+		assertThat(evaluations).anyMatch(e -> e.getBoolean("vehicle"))
+				.anyMatch(e -> !e.getBoolean("vehicle"));
+
+		// without episim.jfc, containers are not recorded
+		try (Recording recording = new Recording(Configuration.getConfiguration("default"))) {
+			recording.start();
+
+			simulate(handler, replay, 4, 5);
+
+			recording.stop();
+			recording.dump(file);
+		}
+
+		handler.close();
+
+		assertThat(RecordingFile.readAllEvents(file))
+				.anyMatch(e -> e.getEventType().getName().equals("org.matsim.episim.Day"))
+				.noneMatch(e -> e.getEventType().getName().equals("org.matsim.episim.ContainerEvaluation"));
+	}
+}
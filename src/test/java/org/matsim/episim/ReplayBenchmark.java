@@ -0,0 +1,85 @@
+package org.matsim.episim;
+
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the number of events per second when simulating whole days, see {@link EpisimTestUtils#createEventStore(int)}.
+ * The simulation is started again for every measurement iteration, so that each of them covers the same days of the epidemic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReplayBenchmark {
+
+	private static final int PERSONS = 10_000;
+
+	/**
+	 * Every person has eight events per day.
+	 */
+	private static final int EVENTS = PERSONS * 8;
+
+	@Param({"1", "4"})
+	private int threads;
+
+	private Config config;
+	private EventStore store;
+
+	private InfectionEventHandler handler;
+	private ReplayHandler replay;
+	private int iteration;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		config = ConfigUtils.createConfig(new EpisimConfigGroup());
+		config.controler().setOutputDirectory(Files.createTempDirectory("episim-benchmark").toString());
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setFacilitiesHandling(EpisimConfigGroup.FacilitiesHandling.snz);
+		episimConfig.setSampleSize(1);
+		episimConfig.setCalibrationParameter(0.00001);
+		episimConfig.setNumberOfThreads(threads);
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("home").setContactIntensity(3));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("work").setContactIntensity(1));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("tr").setContactIntensity(10));
+
+		store = EpisimTestUtils.createEventStore(PERSONS);
+		replay = new ReplayHandler(store, null);
+	}
+
+	@Setup(Level.Iteration)
+	public void startSimulation() {
+		handler = new InfectionEventHandler(config, ScenarioUtils.createScenario(config), EventsUtils.createEventsManager());
+		handler.init(store);
+
+		// the first day builds the trajectories and is not measured
+		handler.reset(0);
+		replay.replayEvents(handler, null, 0);
+		iteration = 1;
+	}
+
+	/**
+	 * Simulates one day, including the progression at its start.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public void replayEvents() {
+		handler.reset(iteration);
+		replay.replayEvents(handler, null, iteration++);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		handler.close();
+	}
+}
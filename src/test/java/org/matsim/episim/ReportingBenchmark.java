@@ -0,0 +1,59 @@
+package org.matsim.episim;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the creation of the daily report from the status counts, which are maintained while persons change their status.
+ * The report does not depend on the number of persons, so only one population size is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportingBenchmark {
+
+	private static final int PERSONS = 100_000;
+
+	private EpisimReporting reporting;
+	private StatusCounts counts;
+
+	@Setup
+	public void setup() throws IOException {
+		Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
+		config.controler().setOutputDirectory(Files.createTempDirectory("episim-benchmark").toString());
+		reporting = new EpisimReporting(config);
+
+		EventsManager manager = EventsUtils.createEventsManager();
+		EpisimPerson.DiseaseStatus[] status = EpisimPerson.DiseaseStatus.values();
+		counts = new StatusCounts();
+		PersonStore store = new PersonStore(PERSONS, counts, manager);
+		for (int i = 0; i < PERSONS; i++) {
+			EpisimPerson person = new EpisimPerson(i, Id.createPersonId(i), new Attributes(), store);
+			person.setDiseaseStatus(0, status[i % status.length]);
+			if (i % 20 == 0)
+				person.setQuarantineStatus(EpisimPerson.QuarantineStatus.full);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		reporting.close();
+	}
+
+	@Benchmark
+	public EpisimReporting.InfectionReport createReport() {
+		return reporting.createReport(counts, 1);
+	}
+}
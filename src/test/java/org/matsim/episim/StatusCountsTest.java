@@ -0,0 +1,46 @@
+package org.matsim.episim;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StatusCountsTest {
+
+	@Test
+	public void countsMatchPersons() {
+		EventsManager manager = Mockito.mock(EventsManager.class);
+		StatusCounts counts = new StatusCounts();
+		PersonStore store = new PersonStore(100, counts, manager);
+		List<EpisimPerson> persons = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			persons.add(new EpisimPerson(i, Id.createPersonId(i), new Attributes(), store));
+
+		assertThat(counts.get(EpisimPerson.DiseaseStatus.susceptible)).isEqualTo(100);
+		assertThat(counts.get(EpisimPerson.QuarantineStatus.no)).isEqualTo(100);
+
+		Random rnd = new Random(0);
+		EpisimPerson.DiseaseStatus[] disease = EpisimPerson.DiseaseStatus.values();
+		EpisimPerson.QuarantineStatus[] quarantine = EpisimPerson.QuarantineStatus.values();
+		for (int i = 0; i < 1000; i++) {
+			EpisimPerson person = persons.get(rnd.nextInt(persons.size()));
+			if (rnd.nextBoolean())
+				person.setDiseaseStatus(0, disease[rnd.nextInt(disease.length)]);
+			else
+				person.setQuarantineStatus(quarantine[rnd.nextInt(quarantine.length)]);
+		}
+
+		for (EpisimPerson.DiseaseStatus status : disease)
+			assertThat(counts.get(status)).isEqualTo(persons.stream().filter(p -> p.getDiseaseStatus() == status).count());
+
+		for (EpisimPerson.QuarantineStatus status : quarantine)
+			assertThat(counts.get(status)).isEqualTo(persons.stream().filter(p -> p.getQuarantineStatus() == status).count());
+	}
+}
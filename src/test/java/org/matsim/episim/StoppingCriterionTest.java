@@ -0,0 +1,63 @@
+package org.matsim.episim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StoppingCriterionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static EpisimReporting.InfectionReport report(long day, long contagious, long recovered) {
+		EpisimReporting.InfectionReport report = new EpisimReporting.InfectionReport();
+		report.day = day;
+		report.nContagious = contagious;
+		report.nTotalInfected = contagious;
+		report.nRecovered = recovered;
+		return report;
+	}
+
+	@Test
+	public void extinction() {
+		StoppingCriterion criterion = StoppingCriterion.extinction();
+
+		assertThat(criterion.shouldStop(report(0, 0, 0))).isFalse();
+		assertThat(criterion.shouldStop(report(5, 10, 0))).isFalse();
+		assertThat(criterion.shouldStop(report(5, 0, 10))).isTrue();
+	}
+
+	@Test
+	public void divergence() {
+		StoppingCriterion criterion = StoppingCriterion.divergence(100);
+
+		assertThat(criterion.shouldStop(report(5, 50, 50))).isFalse();
+		assertThat(criterion.shouldStop(report(5, 50, 51))).isTrue();
+	}
+
+	@Test
+	public void targetCurve() throws IOException {
+		Path infections = folder.getRoot().toPath().resolve("infections.txt");
+		Files.write(infections, List.of(
+				"time\tday\tnSusceptible\tnInfectedButNotContagious\tnContagious\tnSeriouslySick\tnCritical\tnTotalInfected\tnInfectedCumulative\tnRecovered\tnInQuarantine",
+				"86400.0\t1\t990\t10\t0\t0\t0\t10\t10\t0\t0",
+				"172800.0\t2\t900\t50\t50\t0\t0\t100\t100\t0\t0"
+		));
+
+		Map<Long, Long> target = StoppingCriterion.readTarget(infections);
+		assertThat(target).containsEntry(1L, 10L).containsEntry(2L, 100L);
+
+		StoppingCriterion criterion = StoppingCriterion.targetCurve(target, 0.5);
+		assertThat(criterion.shouldStop(report(2, 140, 0))).isFalse();
+		assertThat(criterion.shouldStop(report(2, 40, 0))).isTrue();
+		assertThat(criterion.shouldStop(report(3, 1000, 0))).isFalse();
+	}
+}
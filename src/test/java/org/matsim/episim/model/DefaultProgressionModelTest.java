@@ -0,0 +1,50 @@
+package org.matsim.episim.model;
+
+import org.junit.Test;
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.EpisimTestUtils;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DefaultProgressionModelTest {
+
+	private static EpisimPerson createInfectedPerson() {
+		EpisimPerson person = EpisimTestUtils.createPerson("home", null);
+		person.setDiseaseStatus(0, EpisimPerson.DiseaseStatus.infectedButNotContagious);
+		person.setInfectionDate(0);
+		return person;
+	}
+
+	/**
+	 * Persons only updated at their next transition day need to progress the same as persons updated every day.
+	 */
+	@Test
+	public void scheduledTransitionsMatchDailyUpdates() {
+		Random rnd = new Random();
+		DefaultProgressionModel model = new DefaultProgressionModel(rnd, EpisimTestUtils.createTestConfig());
+
+		for (int i = 0; i < 2000; i++) {
+			EpisimPerson daily = createInfectedPerson();
+			EpisimPerson scheduled = createInfectedPerson();
+
+			int next = model.nextTransitionDay(scheduled, 1);
+			for (int day = 1; day < 60; day++) {
+				rnd.setSeed(i * 100L + day);
+				model.updateState(daily, day);
+
+				if (day == next) {
+					rnd.setSeed(i * 100L + day);
+					model.updateState(scheduled, day);
+					next = model.nextTransitionDay(scheduled, day + 1);
+				}
+
+				assertThat(scheduled.getDiseaseStatus()).isEqualTo(daily.getDiseaseStatus());
+				assertThat(scheduled.getQuarantineStatus()).isEqualTo(daily.getQuarantineStatus());
+			}
+
+			assertThat(next).isIn(-1, 60);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.matsim.episim.model;
+
+import org.matsim.episim.*;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures contact sampling and infection probabilities for persons leaving containers of different size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfectionModelBenchmark {
+
+	@Param({"10", "100", "10000"})
+	private int occupants;
+
+	private DefaultInfectionModel model;
+	private InfectionEventHandler.EpisimFacility facility;
+	private Random rnd;
+
+	@Setup
+	public void setup() {
+		EpisimConfigGroup config = EpisimTestUtils.createTestConfig();
+		model = new DefaultInfectionModel(new Random(1), config, Mockito.mock(EpisimReporting.class), false);
+		model.setRestrictionsForIteration(1, config.createInitialRestrictions());
+
+		// half of the persons are contagious, with a contact intensity of zero nobody gets infected and the state stays the same
+		facility = EpisimTestUtils.createFacility(occupants / 2, "c00", p -> {
+		});
+		EpisimTestUtils.addPersons(facility, occupants - occupants / 2, "c00", EpisimTestUtils.CONTAGIOUS);
+
+		rnd = new Random(0);
+	}
+
+	@Benchmark
+	public void infectionDynamicsFacility() {
+		EpisimPerson person = facility.getPersons().get(rnd.nextInt(occupants));
+		model.infectionDynamicsFacility(person, facility, 3600, "c00");
+	}
+}
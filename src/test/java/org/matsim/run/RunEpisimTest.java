@@ -0,0 +1,72 @@
+package org.matsim.run;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.EpisimTestUtils;
+import org.matsim.episim.ReplayHandler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RunEpisimTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Number of running writer threads of {@link org.matsim.episim.EpisimReporting}.
+	 */
+	private static long reportingThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(t -> t.isAlive() && t.getName().equals("episim-reporting"))
+				.count();
+	}
+
+	@Test
+	public void failedRunIsClosed() throws IOException {
+		Path events = folder.getRoot().toPath().resolve("events.xml");
+		EventWriterXML writer = new EventWriterXML(events.toString());
+		EpisimTestUtils.createEvents(100).forEach(writer::handleEvent);
+		writer.closeFile();
+
+		Path output = folder.newFolder("output").toPath();
+		Config config = ConfigUtils.createConfig(new EpisimConfigGroup());
+		config.controler().setOutputDirectory(output.toString());
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		episimConfig.setInputEventsFile(events.toString());
+		episimConfig.setFacilitiesHandling(EpisimConfigGroup.FacilitiesHandling.snz);
+		episimConfig.setSampleSize(1);
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("home").setContactIntensity(3));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("work").setContactIntensity(1));
+		episimConfig.addContainerParams(new EpisimConfigGroup.InfectionParams("tr").setContactIntensity(10));
+
+		RunEpisim.prepareConfig(config);
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		long before = reportingThreads();
+
+		try (ReplayHandler replay = new ReplayHandler(episimConfig, scenario)) {
+			assertThatThrownBy(() -> RunEpisim.simulate(config, scenario, replay, null, 5, (handler, day) -> {
+				if (day == 2)
+					throw new IllegalStateException("Failed");
+
+				return true;
+			})).hasMessage("Failed");
+		}
+
+		// the reporting of the failed run has been closed, its writer thread stopped after writing all output
+		assertThat(reportingThreads()).isEqualTo(before);
+		assertThat(Files.readAllLines(output.resolve("infections.txt"))).isNotEmpty();
+	}
+}